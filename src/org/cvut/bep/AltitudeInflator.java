@@ -57,6 +57,28 @@ public class AltitudeInflator {
                 .hasArg()
                 .desc("samples count per tile (default value is " + InflatorTilesDownloader.DEFAULT_SAMPLES_COUNT + ")")
                 .build());
+        mOptions.addOption(Option.builder()
+                .longOpt("tiles-disk-budget")
+                .argName("MB")
+                .hasArg()
+                .desc("maximum size of tiles folder, least recently used tiles are evicted beyond it")
+                .build());
+        mOptions.addOption(Option.builder()
+                .longOpt("tiles-adaptive")
+                .desc("downloads fewer samples per row away from equator, so samples stay roughly square in meters (kept for the tiles folder)")
+                .build());
+        mOptions.addOption(Option.builder()
+                .longOpt("shared-cache")
+                .argName("FILE")
+                .hasArg()
+                .desc("file in memory (e.g. under /dev/shm) sharing loaded tiles among concurrent runs (tiles provider only)")
+                .build());
+        mOptions.addOption(Option.builder()
+                .longOpt("shared-cache-size")
+                .argName("MB")
+                .hasArg()
+                .desc("size of shared cache when it is created (default value is " + AltitudeInflatorApp.DEFAULT_SHARED_CACHE_SIZE + ")")
+                .build());
         mOptions.addOption(Option.builder("e")
                 .longOpt("elevation-provider")
                 .argName("PROVIDER")
@@ -69,6 +91,12 @@ public class AltitudeInflator {
                 .hasArg()
                 .desc("when tiles elevation provider is used, it is necessary to provide path to resource temp folder")
                 .build());
+        mOptions.addOption(Option.builder()
+                .longOpt("cache-snapshot")
+                .argName("FILE")
+                .hasArg()
+                .desc("file with tiles used by previous run, loaded on start and saved on exit (tiles provider only)")
+                .build());
         mOptions.addOption(Option.builder("k")
                 .argName("KEY")
                 .longOpt("api-key")
@@ -10,6 +10,7 @@ import org.cvut.bep.providers.ElevationProvider;
 import org.cvut.bep.providers.GoogleMapsElevationProvider;
 import org.cvut.bep.providers.TilesElevationProvider;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 
@@ -17,6 +18,8 @@ import java.util.ArrayList;
  * Created by janzaloudek on 19/05/16.
  */
 public class AltitudeInflatorApp {
+    public static final long DEFAULT_SHARED_CACHE_SIZE = 1024;
+
     String fileName;
     String outputFileName;
     WaypointFile waypointFile;
@@ -57,7 +60,20 @@ public class AltitudeInflatorApp {
                 throw new AltitudeInflatorException("Tiles folder (--tiles-folder) is mandatory when tiles provider is used");
             }
 
-            elevationProvider = new TilesElevationProvider(tilesFolder, depth, samplesCount);
+            TilesElevationProvider tilesProvider = new TilesElevationProvider(tilesFolder, depth, samplesCount);
+            if (args.hasOption("shared-cache")) {
+                long size = Long.parseLong(args.getOptionValue("shared-cache-size",
+                        Long.toString(DEFAULT_SHARED_CACHE_SIZE)));
+                tilesProvider.useSharedCache(new File(args.getOptionValue("shared-cache")), size << 20);
+            }
+            if (args.hasOption("tiles-disk-budget")) {
+                tilesProvider.useDiskBudget(Long.parseLong(args.getOptionValue("tiles-disk-budget")) << 20);
+            }
+            //warm-up starts once caches are configured, it would be discarded otherwise
+            if (args.hasOption("cache-snapshot")) {
+                tilesProvider.useSnapshot(new File(args.getOptionValue("cache-snapshot")));
+            }
+            elevationProvider = tilesProvider;
         } else if (provider == null) {
             throw new AltitudeInflatorException("You have to define elevation provider");
         } else {
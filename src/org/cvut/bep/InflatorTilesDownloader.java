@@ -1,11 +1,18 @@
 package org.cvut.bep;
 
+import aglobe.util.Logger;
+import org.cvut.bep.aglobex.gps.earth.TileFormat;
+import org.cvut.bep.aglobex.gps.earth.TileKey;
+import org.cvut.bep.aglobex.gps.earth.TileLayout;
+import org.cvut.bep.aglobex.gps.earth.TileScheme;
+import org.cvut.bep.aglobex.gps.earth.TileStore;
 import org.cvut.bep.maps.ElevationMapConvertor;
 import org.cvut.bep.maps.GoogleElevationDownloader;
 import org.apache.commons.cli.CommandLine;
 import org.cvut.bep.missionplanner.WaypointFile;
 import org.cvut.bep.missionplanner.WaypointItem;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
@@ -20,6 +27,17 @@ public class InflatorTilesDownloader {
     public byte depth = DEFAULT_DEPTH;
     public int samplesCount = DEFAULT_SAMPLES_COUNT;
 
+    /**
+     * Maximum bytes of the tiles folder, zero for no limit
+     */
+    public long diskBudget = 0;
+
+    /**
+     * Scheme selected for the tiles folder or <code>null</code> to keep the
+     * scheme of the folder
+     */
+    public TileScheme scheme = null;
+
     WaypointFile waypointFile;
     String fileName, outputFolder;
     Queue<String> apiKeys;
@@ -43,6 +61,12 @@ public class InflatorTilesDownloader {
         final InflatorTilesDownloader downloader = new InflatorTilesDownloader(fileName, outputFolder, apiKeys);
         downloader.setDepth(depth);
         downloader.setSamplesCount(samplesCount);
+        if (args.hasOption("tiles-disk-budget")) {
+            downloader.setDiskBudget(Long.parseLong(args.getOptionValue("tiles-disk-budget")) << 20);
+        }
+        if (args.hasOption("tiles-adaptive")) {
+            downloader.setScheme(TileScheme.ADAPTIVE);
+        }
         return downloader;
     }
 
@@ -66,48 +90,93 @@ public class InflatorTilesDownloader {
         return idxLongitude;
     }
 
-    private Set<IdPair> detectTiles() {
+    /**
+     * @return keys of tiles with waypoints, see {@link TileKey}, sorted so
+     * tiles close to each other are downloaded one after another
+     */
+    private SortedSet<Long> detectTiles() {
         final ArrayList<WaypointItem> items = waypointFile.getItems();
-        Set<IdPair> pairs = new HashSet<IdPair>();
+        SortedSet<Long> keys = new TreeSet<Long>();
 
         for (WaypointItem item : items) {
             int idLat = getLatitudeIndex(item.getLatitude());
             int idLong = getLongitudeIndex(item.getLongitude());
-            IdPair pair = new IdPair(idLat, idLong);
-            pairs.add(pair);
+            keys.add(TileKey.getKey(idLat, idLong, depth));
         }
 
-        return pairs;
+        return keys;
     }
 
-    private double[][] downloadTile(GoogleElevationDownloader downloader, IdPair pair) throws GoogleElevationDownloader.LimitExceededException {
-        double[][] data = downloader.getElevationMapTile(pair.latitudeIndex,
-                pair.longitudeIndex, depth, samplesCount);
+    private double[][] downloadTile(GoogleElevationDownloader downloader, long key, int width) throws GoogleElevationDownloader.LimitExceededException {
+        double[][] data = downloader.getElevationMapTile(TileKey.getLatitudeIndex(key),
+                TileKey.getLongitudeIndex(key), depth, width, samplesCount);
 
         return data;
     }
 
-    private void saveTiles(Set<IdPair> pairs) throws GoogleElevationDownloader.LimitExceededException, IOException {
+    private void saveTiles(SortedSet<Long> keys) throws GoogleElevationDownloader.LimitExceededException, IOException {
         GoogleElevationDownloader downloader = new GoogleElevationDownloader();
         downloader.setApiKey(apiKeys.poll());
 
-        for (IdPair pair : pairs) {
-            double[][] data = null;
-            try {
-                data = downloadTile(downloader, pair);
-            } catch (GoogleElevationDownloader.LimitExceededException e) {
-                String apiKey = apiKeys.poll();
-                downloader.setApiKey(apiKey);
-                data = downloadTile(downloader, pair);
+        //tiles are downloaded in width of the scheme of the folder
+        File folder = new File(outputFolder);
+        if (scheme != null) {
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Cannot create tiles folder '" + folder + "'!");
             }
+            scheme.select(folder);
+        }
+        TileScheme folderScheme = TileScheme.detect(folder);
+        TileLayout folderLayout = TileLayout.detect(folder);
+        TileStore store = diskBudget > 0 ? new TileStore(new File(outputFolder), diskBudget) : null;
 
-            ElevationMapConvertor.exportTile(pair.latitudeIndex, pair.longitudeIndex, this.depth, data, outputFolder);
+        try {
+            for (long key : keys) {
+                int width = folderScheme.getWidth(TileKey.getLatitudeIndex(key), depth, samplesCount);
+                double[][] data = null;
+                try {
+                    data = downloadTile(downloader, key, width);
+                } catch (GoogleElevationDownloader.LimitExceededException e) {
+                    String apiKey = apiKeys.poll();
+                    downloader.setApiKey(apiKey);
+                    data = downloadTile(downloader, key, width);
+                }
+
+                ElevationMapConvertor.exportTile(TileKey.getLatitudeIndex(key), TileKey.getLongitudeIndex(key),
+                        this.depth, data, outputFolder, TileFormat.SampleType.FLOAT64, 0, folderLayout, folderScheme);
+
+                //rows of exported tile are not needed unless it is evicted
+                if (store != null) {
+                    store.recordAccess(key);
+                    downloader.dropCachedTile(TileKey.getLatitudeIndex(key), TileKey.getLongitudeIndex(key),
+                            this.depth, width, samplesCount);
+                }
+            }
+        } finally {
+            if (store != null) {
+                trimStore(store);
+            }
         }
 
 //        ElevationMapConvsertor.exportTile(
 //                idxLat, idxLong, (byte)12, data, "./work/datasets/GOOGLE_forest_elevation/converted 12/");
     }
 
+    /**
+     * Will evict least recently used tiles beyond the disk budget and report
+     * usage of the tiles folder.
+     *
+     * @param store of the tiles folder
+     */
+    private void trimStore(TileStore store) {
+        try {
+            int evicted = store.trim().size();
+            System.out.println("Evicted " + evicted + " tiles, using " + store.getUsage());
+        } catch (IOException e) {
+            Logger.logWarning("Failed to trim tiles folder '" + outputFolder + "'!", e);
+        }
+    }
+
     public void setDepth(byte depth) {
         this.depth = depth;
     }
@@ -116,6 +185,29 @@ public class InflatorTilesDownloader {
         this.samplesCount = samplesCount;
     }
 
+    /**
+     * @param diskBudget maximum bytes of the tiles folder, zero for no limit
+     */
+    public void setDiskBudget(long diskBudget) {
+        this.diskBudget = diskBudget;
+    }
+
+    public long getDiskBudget() {
+        return diskBudget;
+    }
+
+    /**
+     * @param scheme to be selected for the tiles folder, <code>null</code> to
+     *               keep the scheme of the folder
+     */
+    public void setScheme(TileScheme scheme) {
+        this.scheme = scheme;
+    }
+
+    public TileScheme getScheme() {
+        return scheme;
+    }
+
     public byte getDepth() {
         return depth;
     }
@@ -126,39 +218,11 @@ public class InflatorTilesDownloader {
 
     public void run() throws IOException {
         loadWaypoints();
-        final Set<IdPair> idPairs = detectTiles();
+        final SortedSet<Long> keys = detectTiles();
         try {
-            saveTiles(idPairs);
+            saveTiles(keys);
         } catch (GoogleElevationDownloader.LimitExceededException e) {
             e.printStackTrace();
         }
     }
-
-    class IdPair {
-        public int latitudeIndex, longitudeIndex;
-
-        public IdPair(int latIndex, int longIndex) {
-            latitudeIndex = latIndex;
-            longitudeIndex = longIndex;
-        }
-
-        @Override
-        public String toString() {
-            return "Pair <" + latitudeIndex + ", " + longitudeIndex + ">";
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            IdPair pair = (IdPair) obj;
-            return (latitudeIndex == pair.latitudeIndex && longitudeIndex == pair.longitudeIndex);
-        }
-
-        @Override
-        public int hashCode() {
-            int result = 1;
-            result = 37 * result + latitudeIndex;
-            result = 19 * result + longitudeIndex;
-            return result;
-        }
-    }
 }
@@ -0,0 +1,255 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+/**
+ * This class caches altitudes of recently looked up latlong positions. Entries
+ * are kept in primitive arrays with open addressing, so neither lookup nor
+ * insertion allocates. Each position may be placed only within short probe
+ * window after its hash slot and when the window is full, entry to be replaced
+ * is chosen by CLOCK (second chance) algorithm within the window. Full double
+ * precision is compared, so the cache makes sense only on guaranteed repeated
+ * requests. NaN altitudes are never cached and mark empty slots.<br><br>
+ * Slots are split into segments selected by the hash, each guarded by its own
+ * lock and probe windows wrap within segment, so threads looking up distinct
+ * positions rarely contend.
+ */
+public class AltitudeCache {
+    /**
+     * Count of slots an entry may be placed in, starting at its hash slot
+     */
+    private final static int PROBE_LIMIT = 8;
+
+    /**
+     * Maximum count of segments with own lock
+     */
+    private final static int MAXIMUM_SEGMENTS = 16;
+
+    /**
+     * Bits of latitudes of the entries
+     */
+    private final long[] latitudes;
+
+    /**
+     * Bits of longitudes of the entries
+     */
+    private final long[] longitudes;
+
+    /**
+     * Cached altitudes, NaN for empty slot
+     */
+    private final double[] altitudes;
+
+    /**
+     * Reference bits of CLOCK algorithm
+     */
+    private final boolean[] referenced;
+
+    /**
+     * Mask of slot index within segment, segment size is power of two
+     */
+    private final int mask;
+
+    /**
+     * Count of bits of hash selecting the segment
+     */
+    private final int segmentBits;
+
+    /**
+     * Locks of the segments
+     */
+    private final Object[] locks;
+
+    /**
+     * Count of lookups that found cached altitude per segment
+     */
+    private final long[] hits;
+
+    /**
+     * Count of lookups that did not find cached altitude per segment
+     */
+    private final long[] misses;
+
+    /**
+     * Will create cache holding at most given count of entries rounded up to
+     * power of two.
+     *
+     * @param maximumEntries count of entries
+     */
+    public AltitudeCache(int maximumEntries) {
+        if (maximumEntries <= 0 || maximumEntries > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid size of altitude cache " + maximumEntries + "!");
+        }
+        int capacity = Integer.highestOneBit(maximumEntries);
+        capacity = capacity < maximumEntries ? capacity << 1 : capacity;
+        capacity = Math.max(capacity, PROBE_LIMIT);
+        this.latitudes = new long[capacity];
+        this.longitudes = new long[capacity];
+        this.altitudes = new double[capacity];
+        this.referenced = new boolean[capacity];
+        int segments = Math.min(MAXIMUM_SEGMENTS, capacity / PROBE_LIMIT);
+        this.segmentBits = Integer.numberOfTrailingZeros(segments);
+        this.mask = capacity / segments - 1;
+        this.locks = new Object[segments];
+        for (int segment = 0; segment < segments; segment++) {
+            locks[segment] = new Object();
+        }
+        this.hits = new long[segments];
+        this.misses = new long[segments];
+        clear();
+    }
+
+    /**
+     * Will calculate hash of given position.
+     *
+     * @param latitudeBits  bits of latitude
+     * @param longitudeBits bits of longitude
+     * @return hash, its highest bits select the segment
+     */
+    private static long getHash(long latitudeBits, long longitudeBits) {
+        long hash = latitudeBits * 0x9E3779B97F4A7C15L + longitudeBits;
+        hash *= 0xC2B2AE3D27D4EB4FL;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * @return segment of given hash
+     */
+    private int getSegment(long hash) {
+        return segmentBits == 0 ? 0 : (int) (hash >>> (64 - segmentBits));
+    }
+
+    /**
+     * Will look up altitude of given position.
+     *
+     * @param latitude  in degrees
+     * @param longitude in degrees
+     * @return cached altitude in meters or NaN if not cached
+     */
+    public double get(double latitude, double longitude) {
+        long latitudeBits = Double.doubleToLongBits(latitude);
+        long longitudeBits = Double.doubleToLongBits(longitude);
+        long hash = getHash(latitudeBits, longitudeBits);
+        int segment = getSegment(hash);
+        int base = segment * (mask + 1);
+        int index = (int) hash & mask;
+        synchronized (locks[segment]) {
+            for (int probe = 0; probe < PROBE_LIMIT; probe++, index = (index + 1) & mask) {
+                int slot = base + index;
+                if (latitudes[slot] == latitudeBits && longitudes[slot] == longitudeBits
+                        && !Double.isNaN(altitudes[slot])) {
+                    referenced[slot] = true;
+                    hits[segment]++;
+                    return altitudes[slot];
+                }
+            }
+            misses[segment]++;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Will cache altitude of given position. Position already in the cache is
+     * updated, otherwise empty slot is used or an entry is replaced.
+     *
+     * @param latitude  in degrees
+     * @param longitude in degrees
+     * @param altitude  in meters, NaN is ignored
+     */
+    public void put(double latitude, double longitude, double altitude) {
+        if (Double.isNaN(altitude)) {
+            return;
+        }
+        long latitudeBits = Double.doubleToLongBits(latitude);
+        long longitudeBits = Double.doubleToLongBits(longitude);
+        long hash = getHash(latitudeBits, longitudeBits);
+        int segment = getSegment(hash);
+        int base = segment * (mask + 1);
+        int first = (int) hash & mask;
+        synchronized (locks[segment]) {
+            //existing entry or empty slot
+            int index = first;
+            int empty = -1;
+            for (int probe = 0; probe < PROBE_LIMIT; probe++, index = (index + 1) & mask) {
+                int slot = base + index;
+                if (Double.isNaN(altitudes[slot])) {
+                    empty = empty < 0 ? slot : empty;
+                } else if (latitudes[slot] == latitudeBits && longitudes[slot] == longitudeBits) {
+                    altitudes[slot] = altitude;
+                    return;
+                }
+            }
+
+            //victim with cleared reference bit, second chance to the others
+            if (empty < 0) {
+                empty = base + first;
+                index = first;
+                for (int probe = 0; probe < PROBE_LIMIT; probe++, index = (index + 1) & mask) {
+                    if (!referenced[base + index]) {
+                        empty = base + index;
+                        break;
+                    }
+                    referenced[base + index] = false;
+                }
+            }
+
+            latitudes[empty] = latitudeBits;
+            longitudes[empty] = longitudeBits;
+            altitudes[empty] = altitude;
+            referenced[empty] = false;
+        }
+    }
+
+    /**
+     * Will remove all entries, statistics are kept.
+     */
+    public void clear() {
+        int segmentSize = mask + 1;
+        for (int segment = 0; segment < locks.length; segment++) {
+            synchronized (locks[segment]) {
+                java.util.Arrays.fill(altitudes, segment * segmentSize, (segment + 1) * segmentSize, Double.NaN);
+                java.util.Arrays.fill(referenced, segment * segmentSize, (segment + 1) * segmentSize, false);
+            }
+        }
+    }
+
+    /**
+     * @return maximum count of entries
+     */
+    public int getCapacity() {
+        return altitudes.length;
+    }
+
+    /**
+     * @return count of lookups that found cached altitude
+     */
+    public long getHits() {
+        long sum = 0;
+        for (int segment = 0; segment < locks.length; segment++) {
+            synchronized (locks[segment]) {
+                sum += hits[segment];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return count of lookups that did not find cached altitude
+     */
+    public long getMisses() {
+        long sum = 0;
+        for (int segment = 0; segment < locks.length; segment++) {
+            synchronized (locks[segment]) {
+                sum += misses[segment];
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long misses = getMisses();
+        long lookups = hits + misses;
+        return "AltitudeCache " + getCapacity() + " entries, " + hits + " hits, " + misses + " misses"
+                + (lookups > 0 ? String.format(" (%.1f%% hit rate)", 100.0 * hits / lookups) : "");
+    }
+}
@@ -0,0 +1,132 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses blocks of samples kept in memory, see
+ * {@link SampleBuffer#compress()}. Every sample is replaced by difference of
+ * its bits to bits of previous sample in row-major order, bytes of same
+ * significance are grouped together and the result is deflated. Neighbouring
+ * samples of terrain are close, so upper bytes of the differences are mostly
+ * zero and deflate well. Compression is lossless for all sample types.
+ */
+final class BlockCompressor {
+    private BlockCompressor() {
+    }
+
+    /**
+     * Will compress samples of given block.
+     *
+     * @param block      little-endian samples between position and limit
+     * @param sampleSize bytes of single sample
+     * @return deflated block
+     */
+    static byte[] compress(ByteBuffer block, int sampleSize) {
+        block = block.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int count = block.remaining() / sampleSize;
+        byte[] grouped = new byte[count * sampleSize];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long bits = getBits(block, i * sampleSize, sampleSize);
+            long difference = bits - previous;
+            previous = bits;
+            for (int b = 0; b < sampleSize; b++) {
+                grouped[b * count + i] = (byte) (difference >>> (8 * b));
+            }
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(grouped);
+            deflater.finish();
+            ByteArrayOutputStream packed = new ByteArrayOutputStream(grouped.length / 4 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                packed.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return packed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Will decompress block written by {@link #compress(ByteBuffer, int)}.
+     *
+     * @param packed     deflated block
+     * @param count      of samples in the block
+     * @param sampleSize bytes of single sample
+     * @return little-endian samples of the block at position zero
+     */
+    static ByteBuffer decompress(byte[] packed, int count, int sampleSize) {
+        byte[] grouped = new byte[count * sampleSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int read = 0;
+            while (read < grouped.length) {
+                int inflated = inflater.inflate(grouped, read, grouped.length - read);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Compressed block is truncated!");
+                }
+                read += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed block is corrupted!", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer block = ByteBuffer.allocate(grouped.length).order(ByteOrder.LITTLE_ENDIAN);
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long difference = 0;
+            for (int b = 0; b < sampleSize; b++) {
+                difference |= (grouped[b * count + i] & 0xFFL) << (8 * b);
+            }
+            previous += difference;
+            putBits(block, i * sampleSize, sampleSize, previous);
+        }
+        return block;
+    }
+
+    /**
+     * @return bits of sample at given byte offset
+     */
+    private static long getBits(ByteBuffer block, int offset, int sampleSize) {
+        switch (sampleSize) {
+            case 2:
+                return block.getShort(offset);
+            case 4:
+                return block.getInt(offset);
+            case 8:
+                return block.getLong(offset);
+            default:
+                throw new IllegalArgumentException("Unsupported sample size " + sampleSize);
+        }
+    }
+
+    /**
+     * Will write lower bits of given value as sample at given byte offset.
+     */
+    private static void putBits(ByteBuffer block, int offset, int sampleSize, long bits) {
+        switch (sampleSize) {
+            case 2:
+                block.putShort(offset, (short) bits);
+                break;
+            case 4:
+                block.putInt(offset, (int) bits);
+                break;
+            case 8:
+                block.putLong(offset, bits);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported sample size " + sampleSize);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class persists set of tiles cached by {@link ElevationMap}, so next run
+ * can load the tiles before they are asked for. Snapshot holds keys of the
+ * tiles with count of their accesses and optionally the tiles themselves as
+ * {@link TileFormat} records.<br><br>
+ * <h5>Layout (little-endian):</h5>
+ * <pre>
+ * offset  type    content
+ *      0  int     magic number {@link #MAGIC}
+ *      4  short   format version
+ *      6  short   reserved
+ *      8  int     resolution of the tiles
+ *     12  int     count of entries
+ *     16  entry[] long key of tile, see {@link TileKey}, long version of
+ *                 the tile, see {@link TileManifest}, int count of accesses,
+ *                 int length of record (zero if not stored) and the record
+ *                 itself
+ * </pre>
+ * Entries of version 2 have no version of the tile, their records are
+ * read as {@link #UNKNOWN_VERSION}.
+ */
+final class CacheSnapshot {
+    /**
+     * Magic number at the beginning of every snapshot ("ELVS" in file).
+     */
+    final static int MAGIC = 0x53564C45;
+
+    /**
+     * Current version of the format. Version 2 keys tiles by {@link TileKey},
+     * version 3 stores version of every tile.
+     */
+    final static short VERSION = 3;
+
+    /**
+     * Previous version of the format which is still read.
+     */
+    final static short KEYED_VERSION = 2;
+
+    /**
+     * Version of tiles of snapshots without versions, matches no tile.
+     */
+    final static long UNKNOWN_VERSION = -1;
+
+    private final static int HEADER_SIZE = 16;
+
+    private final static int ENTRY_HEADER_SIZE = 24;
+
+    private final static int KEYED_ENTRY_HEADER_SIZE = 16;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Will write snapshot of given tiles. File is written to temporary file
+     * first and moved in place afterwards.
+     *
+     * @param file       to be written
+     * @param resolution of the tiles
+     * @param accesses   keys of the tiles with count of their accesses
+     * @param tiles      tiles to be stored with their keys or <code>null</code>
+     *                   to store keys only
+     * @param versions   versions of the tiles with their keys, tiles missing
+     *                   there are stored with version zero
+     * @throws IOException in case of write failure
+     */
+    static void save(File file, int resolution, Map<Long, Integer> accesses,
+                     Map<Long, ElevationTile> tiles, Map<Long, Long> versions) throws IOException {
+        File temporary = new File(file.getAbsolutePath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) 0);
+            header.putInt(resolution);
+            header.putInt(accesses.size());
+            header.flip();
+            channel.write(header);
+
+            for (Map.Entry<Long, Integer> access : accesses.entrySet()) {
+                ElevationTile tile = tiles != null ? tiles.get(access.getKey()) : null;
+                ByteBuffer record = tile != null && tile.hasData() ? tile.toRecord() : null;
+                ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                Long version = versions.get(access.getKey());
+                entry.putLong(access.getKey());
+                entry.putLong(version != null ? version : 0);
+                entry.putInt(access.getValue());
+                entry.putInt(record != null ? record.remaining() : 0);
+                entry.flip();
+                channel.write(entry);
+                while (record != null && record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Will read snapshot from given file.
+     *
+     * @param file       of the snapshot
+     * @param resolution expected resolution of the tiles
+     * @return entries ordered by count of accesses, most accessed first
+     * @throws IOException in case the file cannot be read or does not match
+     */
+    static List<Entry> load(File file, int resolution) throws IOException {
+        ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (snapshot.remaining() < HEADER_SIZE || snapshot.getInt() != MAGIC) {
+            throw new IOException("Invalid cache snapshot '" + file + "'!");
+        }
+        short version = snapshot.getShort();
+        if (version != VERSION && version != KEYED_VERSION) {
+            throw new IOException("Unsupported version of cache snapshot '" + file + "'!");
+        }
+        int entryHeaderSize = version == VERSION ? ENTRY_HEADER_SIZE : KEYED_ENTRY_HEADER_SIZE;
+        snapshot.getShort();
+        if (snapshot.getInt() != resolution) {
+            throw new IOException("Cache snapshot '" + file + "' holds tiles of other resolution!");
+        }
+
+        int count = snapshot.getInt();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            if (snapshot.remaining() < entryHeaderSize) {
+                throw new IOException("Cache snapshot '" + file + "' is truncated!");
+            }
+            long key = snapshot.getLong();
+            long tileVersion = version == VERSION ? snapshot.getLong() : UNKNOWN_VERSION;
+            int accesses = snapshot.getInt();
+            int length = snapshot.getInt();
+            if (length < 0 || length > snapshot.remaining()) {
+                throw new IOException("Cache snapshot '" + file + "' is truncated!");
+            }
+
+            //record is copied, so tiles do not keep whole snapshot in memory
+            ByteBuffer record = null;
+            if (length > 0) {
+                record = ByteBuffer.allocate(length);
+                snapshot.get(record.array());
+            }
+            entries.add(new Entry(key, tileVersion, accesses, record));
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Tile of the snapshot.
+     */
+    static class Entry implements Comparable<Entry> {
+        /**
+         * Key of tile, see {@link TileKey}
+         */
+        final long key;
+
+        /**
+         * Version of the tile when the snapshot was saved
+         */
+        final long version;
+
+        /**
+         * Count of accesses to the tile
+         */
+        final int accesses;
+
+        /**
+         * Record of the tile or <code>null</code> if not stored
+         */
+        final ByteBuffer record;
+
+        private Entry(long key, long version, int accesses, ByteBuffer record) {
+            this.key = key;
+            this.version = version;
+            this.accesses = accesses;
+            this.record = record;
+        }
+
+        @Override
+        public int compareTo(Entry that) {
+            return Integer.compare(that.accesses, this.accesses);
+        }
+    }
+}
@@ -2,16 +2,42 @@ package org.cvut.bep.aglobex.gps.earth;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
+import java.nio.channels.FileLock;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
 
 import aglobe.util.Logger;
-import sun.misc.SoftCache;
 
 /**
  * This class represents elevation map that dynamically loads elevation data from
- * quad tree structure on disk.
+ * quad tree structure on disk. Present tiles are indexed on construction, see
+ * {@link TileIndex}. Tiles found in {@link TilePack} files of the repository
+ * shadow loose tile files present at that time. Tiles written by this map are
+ * stored copy-on-write and listed by {@link TileManifest}, they shadow all
+ * others. Tile files are placed in directories of {@link TileLayout} of the
+ * repository and tiles written by this map are sampled by {@link TileScheme}
+ * of the repository.<br><br>
+ * Lookups are thread-safe, so single map may serve many threads. Caches take
+ * no lock on hit and tile missed by several threads at once is loaded just
+ * once, the other threads wait for the result. Configuration methods and
+ * building of tiles are meant to be called by single thread.
  *
  * @author Kaiser Vojtech
  */
@@ -26,9 +52,38 @@ public class ElevationMap {
     private final static int DEFAULT_RESOLUTION = 512;
 
     /**
-     * Data extension that is used for map tiles. It can be either any image
+     * Count of altitudes kept in {@link #altitudeCache} unless set otherwise.
+     */
+    private final static int DEFAULT_ALTITUDE_CACHE_SIZE = 1 << 16;
+
+    /**
+     * Bytes of tiles kept in {@link #tileCache} unless set otherwise.
+     */
+    private final static long DEFAULT_TILE_CACHE_BUDGET = 256L << 20;
+
+    /**
+     * Count of hits of tile in {@link #compressedTileCache} after which the
+     * tile is decompressed back to {@link #tileCache}.
+     */
+    private final static int PROMOTION_HITS = 3;
+
+    /**
+     * Count of points of bulk lookup processed by single task, see
+     * {@link #getElevationsM(double[], double[])}.
+     */
+    private final static int BULK_CHUNK_SIZE = 2048;
+
+    /**
+     * Length of one degree of latitude (and of longitude at the equator) in
+     * meters, used to convert resolution of queries to depth.
+     */
+    private final static double METERS_PER_DEGREE = 6378137 * Math.PI / 180;
+
+    /**
+     * Data extension that is used for legacy map tiles. It can be either any image
      * extension {@link ImageIO} can read out of the box, or {@code bin} extension
-     * marking the data as 16 bit USHORT grayscale.
+     * marking the data as serialized doubles. Tiles in {@link TileFormat} are
+     * preferred over these.
      */
     private final static String DATA_EXTENSION = "bin";
 
@@ -37,11 +92,6 @@ public class ElevationMap {
      */
     private final static boolean VERBOSE = true;
 
-    /**
-     * If true, will store extra debug images.
-     */
-    private final static boolean DEBUG = true;
-
     /**
      * Directory containing quad tree structure of elevation map tiles. It is
      * expected this directory will contain at least complete level zero! This
@@ -53,10 +103,10 @@ public class ElevationMap {
     private final static String DATASET_DIRECTORY = "/_elevation_earth/";
 
     /**
-     * Cache containing altitudes that have been looked up in recent past.
-     * TODO measure time savings of this cache
+     * Cache containing altitudes that have been looked up in recent past at
+     * maximum depth. Its hit and miss counters tell how much it saves.
      */
-    private final SoftCache altitudeCache = new SoftCache();
+    private AltitudeCache altitudeCache = new AltitudeCache(DEFAULT_ALTITUDE_CACHE_SIZE);
 
     /**
      * Maximum depth of tile that will be tried when lookup of tile is done without
@@ -72,15 +122,25 @@ public class ElevationMap {
     private final int resolution;
 
     /**
-     * Cache containing tiles loaded in recent past. Key is combination of indices
-     * and depth in following scheme:<br>
-     * <pre>
-     * {@code
-     * long key = (idxLatitude<<30)+(idxLongitude<<5)+(depth&&255);
-     * }
-     * </pre>
+     * Cache containing tiles loaded in recent past limited by budget of bytes.
+     * Key is quad tree key of the tile, see {@link TileKey}.
+     */
+    private final TileCache tileCache = new TileCache(DEFAULT_TILE_CACHE_BUDGET);
+
+    /**
+     * Second tier of the cache holding tiles evicted from {@link #tileCache}
+     * compressed in memory, see {@link ElevationTile#compress()}. Tier is
+     * disabled by zero budget unless set otherwise.
+     */
+    private final TileCache compressedTileCache = new TileCache(0);
+
+    /**
+     * Tiles evicted from {@link #tileCache} waiting for compression into
+     * {@link #compressedTileCache}. Tiles are compressed once the lock of the
+     * cache is released, see {@link #compressDemotedTiles()}.
      */
-    private Map<Long, SoftReference<ElevationTile>> tilesCache = new HashMap<Long, SoftReference<ElevationTile>>();
+    private final ConcurrentLinkedQueue<Map.Entry<Long, ElevationTile>> demotedTiles =
+            new ConcurrentLinkedQueue<Map.Entry<Long, ElevationTile>>();
 
     /**
      * True if this elevation map should always return zero. Zero map performs
@@ -93,6 +153,72 @@ public class ElevationMap {
      */
     private final String repositoryPath;
 
+    /**
+     * Layout of tile directories of the repository, detected on construction.
+     */
+    private final TileLayout layout;
+
+    /**
+     * Sampling scheme of tiles written to the repository, detected on
+     * construction.
+     */
+    private final TileScheme scheme;
+
+    /**
+     * Packs found in the repository, opened once on construction.
+     */
+    private final List<TilePack> packs = new ArrayList<TilePack>();
+
+    /**
+     * If true, tiles loaded on heap in full precision are quantized to 16 bits
+     * before they are cached, see {@link ElevationTile#quantize()}.
+     */
+    private volatile boolean quantized = false;
+
+    /**
+     * Off-heap store of tiles cached in {@link #tileCache} when set, see
+     * {@link #setOffHeapCapacity(long)}.
+     */
+    private volatile TileSlabStore offHeapTiles = null;
+
+    /**
+     * Cache of tiles shared with other processes of the host when set, see
+     * {@link #setSharedTileCache(File, long)}.
+     */
+    private volatile SharedTileCache sharedTiles = null;
+
+    /**
+     * Samples shared by all cached constant tiles of same value and sample
+     * type, e.g. sea level. Count of distinct values is small, so shared
+     * samples are never dropped. Guarded by this map.
+     */
+    private final Map<TileFormat.SampleType, Map<Long, SampleBuffer>> constantSamples =
+            new EnumMap<TileFormat.SampleType, Map<Long, SampleBuffer>>(TileFormat.SampleType.class);
+
+    /**
+     * Store recording accesses of tiles and keeping the repository within its
+     * disk budget or <code>null</code>, see {@link #setTileStore(TileStore)}.
+     */
+    private volatile TileStore tileStore = null;
+
+    /**
+     * Loads of tiles in progress, so tile missed by several threads is loaded
+     * just once.
+     */
+    private final ConcurrentHashMap<Long, FutureTask<ElevationTile>> tileLoads =
+            new ConcurrentHashMap<Long, FutureTask<ElevationTile>>();
+
+    /**
+     * Index of tiles present in the repository, <code>null</code> for zero map.
+     */
+    private final TileIndex tileIndex;
+
+    /**
+     * Generation of versioned tiles this map reads, see
+     * {@link #refreshSnapshot()}. <code>null</code> for zero map.
+     */
+    private volatile TileManifest manifest;
+
     /**
      * Will create elevation map that always returns zero
      */
@@ -129,8 +255,239 @@ public class ElevationMap {
     public ElevationMap(String repositoryPath, byte maximumDepth, int resolution) {
         this.isZeroMap = repositoryPath == null;
         this.repositoryPath = repositoryPath;
+        if (maximumDepth > TileKey.MAXIMUM_DEPTH) {
+            throw new IllegalArgumentException("Maximum depth " + maximumDepth + " exceeds depth of tile keys!");
+        }
         this.maximumDepth = maximumDepth;
         this.resolution = resolution;
+
+        if (!isZeroMap) {
+            tileCache.setEvictionListener(new TileCache.EvictionListener() {
+                @Override
+                public void evicted(long key, ElevationTile tile) {
+                    demoteTile(key, tile);
+                }
+            });
+            layout = detectLayout();
+            scheme = detectScheme();
+            openPacks();
+            manifest = loadManifest();
+            tileIndex = new TileIndex(new File(repositoryPath), layout, manifest, packs, DATA_EXTENSION);
+            if (VERBOSE) {
+                System.out.println("Indexed " + tileIndex.size() + " tiles in " + packs.size() + " packs and "
+                        + repositoryPath);
+            }
+        } else {
+            layout = TileLayout.FLAT;
+            scheme = TileScheme.SQUARE;
+            tileIndex = null;
+        }
+    }
+
+    /**
+     * Will find layout of the repository. Unreadable layout is reported and
+     * flat one is assumed.
+     *
+     * @return layout of the repository
+     */
+    private TileLayout detectLayout() {
+        try {
+            return TileLayout.detect(new File(repositoryPath));
+        } catch (IOException e) {
+            Logger.logWarning("Failed to read tile layout of '" + repositoryPath + "'!", e);
+            return TileLayout.FLAT;
+        }
+    }
+
+    /**
+     * Will find sampling scheme of the repository. Unreadable scheme is
+     * reported and square one is assumed.
+     *
+     * @return scheme of the repository
+     */
+    private TileScheme detectScheme() {
+        try {
+            return TileScheme.detect(new File(repositoryPath));
+        } catch (IOException e) {
+            Logger.logWarning("Failed to read tile scheme of '" + repositoryPath + "'!", e);
+            return TileScheme.SQUARE;
+        }
+    }
+
+    /**
+     * Will read current manifest of the repository. Broken manifest is
+     * reported and versioned tiles are ignored then.
+     *
+     * @return current manifest or empty one
+     */
+    private TileManifest loadManifest() {
+        try {
+            return TileManifest.load(new File(repositoryPath));
+        } catch (IOException e) {
+            Logger.logWarning("Failed to read tile manifest of '" + repositoryPath + "'!", e);
+            return manifest != null ? manifest : TileManifest.empty();
+        }
+    }
+
+    /**
+     * Will switch this map to the newest generation of tiles published to the
+     * repository by {@link #buildElevationMapTiles(Collection, byte)} of any
+     * process. Until then, lookups keep reading the generation that was
+     * current on construction or last refresh, whose files are never
+     * modified. Tiles being loaded during the refresh may be cached in their
+     * previous version.
+     *
+     * @return true if newer generation was found
+     */
+    public boolean refreshSnapshot() {
+        if (isZeroMap) {
+            return false;
+        }
+        TileManifest current = manifest;
+        TileManifest next = loadManifest();
+        if (next.getGeneration() <= current.getGeneration()) {
+            return false;
+        }
+        applyManifest(current, next);
+        return true;
+    }
+
+    /**
+     * Will replace current manifest by given newer one, tiles of changed
+     * versions are indexed as versioned and dropped from caches, tiles no
+     * longer listed are dropped entirely.
+     */
+    private synchronized void applyManifest(TileManifest current, TileManifest next) {
+        manifest = next;
+        for (Map.Entry<Long, Long> version : next.getVersions().entrySet()) {
+            if (!version.getValue().equals(current.getVersions().get(version.getKey()))) {
+                tileIndex.put(version.getKey(), TileIndex.Location.VERSIONED);
+                invalidateTile(version.getKey());
+            }
+        }
+        for (long key : current.getVersions().keySet()) {
+            if (!next.getVersions().containsKey(key)) {
+                dropTile(key);
+            }
+        }
+        altitudeCache.clear();
+    }
+
+    /**
+     * Will forget tile deleted from the repository, e.g. by
+     * {@link TileStore#trim()}. Tile still present in a pack is read from the
+     * pack afterwards.
+     *
+     * @param key of the tile
+     */
+    private void dropTile(long key) {
+        boolean packed = false;
+        for (TilePack pack : packs) {
+            packed |= pack.contains(key);
+        }
+        if (packed) {
+            tileIndex.put(key, TileIndex.Location.PACK);
+        } else {
+            tileIndex.remove(key);
+        }
+        invalidateTile(key);
+    }
+
+    /**
+     * Will remove tile of given key from all tiers of the cache.
+     *
+     * @param key of the tile
+     */
+    private void invalidateTile(long key) {
+        ElevationTile cached = tileCache.peek(key);
+        tileCache.invalidate(key);
+        compressedTileCache.invalidate(key);
+        SharedTileCache shared = sharedTiles;
+        if (shared != null && cached != null) {
+            shared.release(key, cached);
+        }
+    }
+
+    /**
+     * @param key of the tile
+     * @return generation of listed version of versioned tile, zero for other
+     * tiles
+     */
+    private long getVersion(long key) {
+        Long version = tileIndex.get(key) == TileIndex.Location.VERSIONED ? manifest.getVersions().get(key) : null;
+        return version != null ? version : 0;
+    }
+
+    /**
+     * @return generation of versioned tiles this map reads, zero if no tile
+     * was published to the repository yet
+     */
+    public long getSnapshotGeneration() {
+        return isZeroMap ? 0 : manifest.getGeneration();
+    }
+
+    /**
+     * Will delete versioned tile files superseded by current generation. It
+     * must not be called while any reader of the repository still uses older
+     * generation.
+     *
+     * @return count of deleted files
+     * @throws IOException in case the repository cannot be locked or its
+     *                     manifest read
+     */
+    public int pruneSnapshots() throws IOException {
+        if (isZeroMap) {
+            return 0;
+        }
+        FileLock lock = TileManifest.lock(new File(repositoryPath));
+        try {
+            return TileManifest.prune(new File(repositoryPath), layout);
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * Will open all {@link TilePack} files found directly in the repository.
+     */
+    private void openPacks() {
+        File[] files = new File(repositoryPath).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith("." + TilePack.EXTENSION)) {
+                continue;
+            }
+            try {
+                packs.add(new TilePack(file));
+            } catch (IOException e) {
+                Logger.logWarning("Failed to open tile pack '" + file + "'!", e);
+            }
+        }
+    }
+
+    /**
+     * Will try to find tile in opened packs.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @return tile or <code>null</code> if no pack contains it
+     */
+    private ElevationTile findPackedTile(int idxLatitude, int idxLongitude, byte depth) {
+        for (TilePack pack : packs) {
+            try {
+                SampleBuffer buffer = pack.read(idxLatitude, idxLongitude, depth, resolution);
+                if (buffer != null) {
+                    return new ElevationTile(buffer, idxLatitude, idxLongitude, depth, resolution);
+                }
+            } catch (IOException e) {
+                Logger.logWarning("Failed to read tile (" + idxLatitude + ", " + idxLongitude + ", "
+                        + depth + ") from " + pack + "!", e);
+            }
+        }
+        return null;
     }
 
     /**
@@ -145,32 +502,292 @@ public class ElevationMap {
      */
     private ElevationTile fetchTile(int idxLatitude, int idxLongitude, byte depth) {
         for (; depth >= 0; depth--, idxLatitude /= 2, idxLongitude /= 2) {
-            //try cache
-            long key = (((long) idxLatitude) << 30) + (((long) idxLongitude) << 5) + (depth & 31);
-            SoftReference<ElevationTile> tileReference = tilesCache.get(key);
-            ElevationTile tile = null;
-            if (tileReference != null && (tile = tileReference.get()) != null) {
+            //skip to deepest present tile
+            byte bestDepth = tileIndex.getBestDepth(idxLatitude, idxLongitude, depth);
+            if (bestDepth < 0) {
+                return null;
+            }
+            idxLatitude >>= depth - bestDepth;
+            idxLongitude >>= depth - bestDepth;
+            depth = bestDepth;
+
+            //try cache, compressed tiles are served until they get hot
+            long key = TileKey.getKey(idxLatitude, idxLongitude, depth);
+            ElevationTile tile = tileCache.get(key);
+            if (tile == null) {
+                tile = compressedTileCache.get(key);
+                if (tile != null && compressedTileCache.getAccesses(key) > PROMOTION_HITS) {
+                    tile = null;
+                }
+            }
+            if (tile == null) {
+                tile = loadTileOnce(key, idxLatitude, idxLongitude, depth);
+            }
+            if (tile != null) {
                 return tile;
             }
+        }
+        return null;
+    }
 
-            //try to load the file
-            File file = getTileFile(idxLatitude, idxLongitude, depth);
-            if (!file.exists()) {
-                continue;
+    /**
+     * Will load tile and cache it, unless another thread loads the same tile
+     * already. In that case its result is awaited instead. Load and wait are
+     * managed blocks, so fork/join pools of bulk lookups and constructions
+     * compensate for workers blocked by I/O.
+     *
+     * @param key          of the tile
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @return cached tile or <code>null</code> if it cannot be loaded
+     */
+    private ElevationTile loadTileOnce(final long key, final int idxLatitude, final int idxLongitude,
+                                       final byte depth) {
+        FutureTask<ElevationTile> load = new FutureTask<ElevationTile>(new Callable<ElevationTile>() {
+            @Override
+            public ElevationTile call() {
+                //tile may have been loaded right before this load was registered
+                ElevationTile tile = tileCache.peek(key);
+                if (tile != null) {
+                    return tile;
+                }
+                //hot compressed tile is decompressed instead of load
+                tile = compressedTileCache.peek(key);
+                if (tile != null) {
+                    tile = cacheTile(key, tile.decompress());
+                    compressedTileCache.invalidate(key);
+                    return tile;
+                }
+                //tile decoded by another process is read in place
+                SharedTileCache shared = sharedTiles;
+                tile = shared != null ? shared.get(key, getVersion(key)) : null;
+                if (tile != null) {
+                    tileCache.put(key, tile);
+                    return tile;
+                }
+                long loadStart = System.nanoTime();
+                tile = loadTile(key, idxLatitude, idxLongitude, depth);
+                if (tile != null) {
+                    tile = cacheTile(key, tile);
+                    tileCache.recordLoad(System.nanoTime() - loadStart);
+                    TileStore store = tileStore;
+                    if (store != null) {
+                        store.recordAccess(key);
+                    }
+                }
+                return tile;
             }
-            try {
-                tile = new ElevationTile(file, idxLatitude, idxLongitude, depth, resolution);
-            } catch (IOException e) {
-                Logger.logWarning("Failed to read elevation data file '" + file + "'!");
-                continue;
+        });
+        FutureTask<ElevationTile> registered = tileLoads.putIfAbsent(key, load);
+        final boolean owner = registered == null;
+        final FutureTask<ElevationTile> running = owner ? load : registered;
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    if (owner) {
+                        try {
+                            running.run();
+                        } finally {
+                            tileLoads.remove(key, running);
+                        }
+                    } else {
+                        try {
+                            running.get();
+                        } catch (ExecutionException e) {
+                            //failure is reported to the caller below
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return !owner && running.isDone();
+                }
+            });
+            if (owner) {
+                compressDemotedTiles();
             }
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to load tile (" + idxLatitude + ", " + idxLongitude + ", "
+                    + depth + ")!", e.getCause());
+        }
+    }
+
+    /**
+     * Will load tile from pack or file pointed to by the index.
+     *
+     * @param key          of the tile
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @return loaded tile or <code>null</code> if it cannot be read
+     */
+    private ElevationTile loadTile(long key, int idxLatitude, int idxLongitude, byte depth) {
+        return loadTile(key, idxLatitude, idxLongitude, depth, true);
+    }
 
-            //cache tile
-            tilesCache.put(key, new SoftReference<ElevationTile>(tile));
+    /**
+     * Will load tile from pack or file pointed to by the index. Versioned
+     * file missing because another process published newer generation and
+     * pruned the previous one is looked for again after refresh of the
+     * snapshot, see {@link #refreshSnapshot()}.
+     *
+     * @param key          of the tile
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param refresh      true if snapshot may be refreshed on missing file
+     * @return loaded tile or <code>null</code> if it cannot be read
+     */
+    private ElevationTile loadTile(long key, int idxLatitude, int idxLongitude, byte depth, boolean refresh) {
+        TileIndex.Location location = tileIndex.get(key);
+        if (location == TileIndex.Location.PACK) {
+            return findPackedTile(idxLatitude, idxLongitude, depth);
+        }
+        File file;
+        String versionedName = location == TileIndex.Location.VERSIONED ? manifest.getFileName(key) : null;
+        if (versionedName != null) {
+            file = new File(getTileDirectory(idxLatitude, idxLongitude, depth), versionedName);
+        } else {
+            file = getTileFile(idxLatitude, idxLongitude, depth,
+                    location == TileIndex.Location.LEGACY ? DATA_EXTENSION : TileFormat.EXTENSION);
+        }
+        try {
+            return new ElevationTile(file, idxLatitude, idxLongitude, depth, resolution);
+        } catch (IOException e) {
+            if (refresh && versionedName != null && !file.exists()) {
+                refreshSnapshot();
+                if (tileIndex.get(key) == null) {
+                    return null;
+                }
+                if (tileIndex.get(key) != TileIndex.Location.VERSIONED
+                        || !versionedName.equals(manifest.getFileName(key))) {
+                    return loadTile(key, idxLatitude, idxLongitude, depth, false);
+                }
+            }
+            Logger.logWarning("Failed to read elevation data file '" + file + "'!");
+            //tile evicted by another process is not looked for again
+            if (!file.exists()) {
+                dropTile(key);
+            }
+            return null;
+        }
+    }
 
+    /**
+     * Will put freshly loaded tile into the cache, moving it off heap or to
+     * shared cache or quantizing it first if configured. Constant tiles are
+     * switched to shared samples instead. Loads run in parallel, but caching
+     * is serialized. Tile is kept on heap when off-heap store or shared cache
+     * cannot free a slot because of concurrent readers.
+     *
+     * @param key  of the tile
+     * @param tile loaded tile not shared with anyone yet
+     * @return cached tile to be used instead of given one
+     */
+    private synchronized ElevationTile cacheTile(long key, ElevationTile tile) {
+        if (tile.isConstant()) {
+            tile = shareConstant(tile);
+            tileCache.put(key, tile);
             return tile;
         }
-        return null;
+        ElevationTile stored = null;
+        if (offHeapTiles != null) {
+            stored = offHeapTiles.put(key, tile);
+        } else if (sharedTiles != null) {
+            stored = sharedTiles.put(key, getVersion(key), tile);
+        }
+        if (stored != null) {
+            tile = stored;
+        } else if (quantized) {
+            tile.quantize();
+        }
+        tileCache.put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Will queue tile evicted from {@link #tileCache} for
+     * {@link #compressedTileCache} unless the tier is disabled. Tiles are not
+     * moved while off-heap store or shared cache is used, because slots of
+     * evicted tiles may be recycled meanwhile, tile of shared cache is
+     * released instead. Lock of {@link #tileCache} is held, so the tile is
+     * compressed later by {@link #compressDemotedTiles()}.
+     *
+     * @param key  of the tile
+     * @param tile evicted tile
+     */
+    private void demoteTile(long key, ElevationTile tile) {
+        SharedTileCache shared = sharedTiles;
+        if (shared != null) {
+            shared.release(key, tile);
+        }
+        if (compressedTileCache.getBudget() == 0 || offHeapTiles != null || shared != null || !tile.hasData()) {
+            return;
+        }
+        demotedTiles.add(new AbstractMap.SimpleImmutableEntry<Long, ElevationTile>(key, tile));
+    }
+
+    /**
+     * Will compress tiles queued by {@link #demoteTile(long, ElevationTile)}
+     * into {@link #compressedTileCache}. Tiles cached again meanwhile are
+     * skipped. Has to be called without lock of {@link #tileCache} held.
+     */
+    private void compressDemotedTiles() {
+        Map.Entry<Long, ElevationTile> demoted;
+        while ((demoted = demotedTiles.poll()) != null) {
+            long key = demoted.getKey();
+            ElevationTile tile = demoted.getValue();
+            if (tileCache.contains(key) || !tile.hasData()) {
+                continue;
+            }
+            compressedTileCache.put(key, tile.compress());
+        }
+    }
+
+    /**
+     * Will replace given constant tile by tile reading shared samples of its
+     * value, so summary of the samples is built once per value. Caller has to
+     * hold lock of this map.
+     *
+     * @param tile constant tile, see {@link ElevationTile#isConstant()}
+     * @return tile of same indices reading shared samples
+     */
+    private ElevationTile shareConstant(ElevationTile tile) {
+        SampleBuffer buffer = tile.getBuffer();
+        Map<Long, SampleBuffer> samples = constantSamples.get(buffer.getType());
+        if (samples == null) {
+            samples = new HashMap<Long, SampleBuffer>();
+            constantSamples.put(buffer.getType(), samples);
+        }
+        long value = Double.doubleToLongBits(buffer.getConstantValue());
+        SampleBuffer shared = samples.get(value);
+        if (shared == null) {
+            shared = buffer;
+            shared.setSummary(tile.getSummary());
+            samples.put(value, shared);
+        }
+        return new ElevationTile(shared, tile.idxLatitude, tile.idxLongitude, tile.depth, resolution);
+    }
+
+    /**
+     * Will load tile of given indices (or best available one containing it)
+     * into the cache unless it is cached already, see {@link TilePrefetcher}.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree (preferred)
+     * @return true if any tile is available
+     */
+    public boolean prefetchTile(int idxLatitude, int idxLongitude, byte depth) {
+        return !isZeroMap && fetchTile(idxLatitude, idxLongitude, depth) != null;
     }
 
     /**
@@ -181,12 +798,37 @@ public class ElevationMap {
      * @param idxLatitude  in quad tree
      * @param idxLongitude in quad tree
      * @param depth        in quad tree
+     * @param extension    of the file
      * @return created file reference which may or may not exist
      */
-    private File getTileFile(int idxLatitude, int idxLongitude, byte depth) {
+    private File getTileFile(int idxLatitude, int idxLongitude, byte depth, String extension) {
         assert (depth < 14);
-        return new File(String.format(repositoryPath + "/"
-                + "/data_%04d_%04d_%02d.%s", idxLatitude, idxLongitude, depth, DATA_EXTENSION));
+        return new File(getTileDirectory(idxLatitude, idxLongitude, depth),
+                String.format("data_%04d_%04d_%02d.%s", idxLatitude, idxLongitude, depth, extension));
+    }
+
+    /**
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @return directory of files of given tile in layout of the repository
+     */
+    private File getTileDirectory(int idxLatitude, int idxLongitude, byte depth) {
+        return layout.getDirectory(new File(repositoryPath), idxLatitude, idxLongitude, depth);
+    }
+
+    /**
+     * @return layout of tile directories of the repository
+     */
+    public TileLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return sampling scheme of tiles written to the repository
+     */
+    public TileScheme getScheme() {
+        return scheme;
     }
 
     /**
@@ -231,196 +873,958 @@ public class ElevationMap {
      * @param latitude  in degrees
      * @param longitude in degrees
      * @param depth     in quad tree, is equivalent to zoom level
-     * @return altitude in meters
+     * @return altitude in meters or NaN if no tile has data at given point
      */
     public double getElevationM(double latitude, double longitude, byte depth) {
         if (isZeroMap) {
             return 0;
         }
 
-        //try position cache / return value
-        PositionKey key = new PositionKey(latitude, longitude);
-        Double altitude = (Double) altitudeCache.get(key);
-        if (altitude != null) {
-            return altitude.doubleValue();
+        //try position cache / return value, only lookups in maximum depth are
+        //cached as coarser ones would be answered by finer values otherwise
+        boolean cached = depth == maximumDepth;
+        double altitude = cached ? altitudeCache.get(latitude, longitude) : Double.NaN;
+        if (!Double.isNaN(altitude)) {
+            return altitude;
         }
 
-        //fetch related tile
-        ElevationTile tile = fetchTile(latitude, longitude, depth);
-
-        //fetch specific position from tile
-        altitude = tile.getElevationM(latitude, longitude);
+        //fetch related tile and specific position from it
+        altitude = lookupElevationM(fetchTile(latitude, longitude, depth), latitude, longitude);
 
         //cache position
-        altitudeCache.put(key, altitude);
+        if (cached) {
+            altitudeCache.put(latitude, longitude, altitude);
+        }
 
-        return altitude.doubleValue();
+        return altitude;
     }
 
     /**
-     * @return true if this map always returns zero and loads no data
+     * Will retrieve altitude in meters at specified point in latlong using
+     * coarsest depth whose samples are not further apart than given
+     * resolution, so callers needing rough altitude touch fewer and smaller
+     * tiles. Value is the sample nearest to the point, so its horizontal error
+     * is at most half of the resolution.
+     *
+     * @param latitude    in degrees
+     * @param longitude   in degrees
+     * @param resolutionM required horizontal resolution in meters
+     * @return altitude in meters or NaN if no tile has data at given point
      */
-    public boolean isZeroMap() {
-        return isZeroMap;
+    public double getElevationAtResolutionM(double latitude, double longitude, double resolutionM) {
+        return getElevationM(latitude, longitude, getDepthForResolution(resolutionM));
     }
 
     /**
-     * Will insert new elevation map tile in currently used elevation map structure
-     * and will update all the levels above it. This method is here to couple all
-     * methods operating data for this class.
-     *
-     * @param idxLatitude  in the quad tree
-     * @param idxLongitude in the quad tree
-     * @param depth        in the quad tree
-     * @param data         array containing elevations in meters where (0,0) corresponds
-     *                     to left upper corner of the tile and (lenght.x, length.y) to right lower
-     *                     corner. Indexing follows (x,y).
-     * @throws IOException in case of failed save of some tile
+     * Will find coarsest depth whose samples are not further apart than given
+     * resolution. Spacing of samples along meridians is used, along parallels
+     * the samples are closer.
+     *
+     * @param resolutionM required horizontal resolution in meters
+     * @return depth not larger than maximum depth of this map, which is used
+     * if no depth meets the resolution
      */
-    public void buildElevationMapTile(int idxLatitude, int idxLongitude, byte depth,
-                                      double[][] data, byte propagationDepth) throws IOException {
-        if (VERBOSE) {
-            System.out.println("> Construction of tile structure");
+    public byte getDepthForResolution(double resolutionM) {
+        for (byte depth = 0; depth < maximumDepth; depth++) {
+            if (getSampleSpacingM(depth) <= resolutionM) {
+                return depth;
+            }
+        }
+        return maximumDepth;
+    }
+
+    /**
+     * @param depth in quad tree
+     * @return distance of neighbouring samples of tile of given depth along
+     * meridian in meters
+     */
+    public double getSampleSpacingM(byte depth) {
+        return 360.0 / (2 << depth) / resolution * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Will retrieve altitudes of many points at once. Points are ordered along
+     * Hilbert curve, which groups them by tile of maximum depth, and the order
+     * is processed in parallel by fork/join tasks, each of them looking up the
+     * tile once for a run of its points.
+     * Results are equal to {@link #getElevationM(double, double)} of every
+     * point, but the altitude cache is bypassed.
+     *
+     * @param latitudes  of the points in degrees
+     * @param longitudes of the points in degrees
+     * @return altitudes in meters in order of the points
+     */
+    public double[] getElevationsM(double[] latitudes, double[] longitudes) {
+        return getElevationsM(latitudes, longitudes, maximumDepth);
+    }
+
+    /**
+     * Will retrieve altitudes of many points at once in coarsest depth meeting
+     * given resolution, see {@link #getElevationAtResolutionM(double, double, double)}
+     * and {@link #getElevationsM(double[], double[])}.
+     *
+     * @param latitudes   of the points in degrees
+     * @param longitudes  of the points in degrees
+     * @param resolutionM required horizontal resolution in meters
+     * @return altitudes in meters in order of the points
+     */
+    public double[] getElevationsAtResolutionM(double[] latitudes, double[] longitudes, double resolutionM) {
+        return getElevationsM(latitudes, longitudes, getDepthForResolution(resolutionM));
+    }
+
+    private double[] getElevationsM(double[] latitudes, double[] longitudes, byte depth) {
+        final double[] altitudes = new double[latitudes.length];
+        if (isZeroMap) {
+            return altitudes;
+        }
+
+        //points of every tile form a run along the curve
+        double degreesPerTile = 360.0 / (2 << depth);
+        final int[] idxLatitudes = new int[latitudes.length];
+        final int[] idxLongitudes = new int[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++) {
+            idxLatitudes[i] = (int) Math.floor((latitudes[i] + 90) / degreesPerTile) - (latitudes[i] == 90 ? 1 : 0);
+            idxLongitudes[i] = (int) Math.floor((longitudes[i] + 180) / degreesPerTile) - (longitudes[i] == 180 ? 1 : 0);
+        }
+        final int[] order = PointOrder.sortByHilbertOrder(latitudes, longitudes);
+
+        ForkJoinPool.commonPool().invoke(new BulkLookup(latitudes, longitudes, idxLatitudes, idxLongitudes,
+                depth, order, altitudes, 0, order.length));
+        return altitudes;
+    }
+
+    /**
+     * Task of bulk lookup resolving range of points ordered by tile. Range is
+     * split until it is small enough, then the points are resolved in order
+     * and tile is fetched again only when it changes.
+     */
+    private class BulkLookup extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final int[] idxLatitudes;
+        private final int[] idxLongitudes;
+        private final byte depth;
+        private final int[] order;
+        private final double[] altitudes;
+        private final int from;
+        private final int to;
+
+        private BulkLookup(double[] latitudes, double[] longitudes, int[] idxLatitudes, int[] idxLongitudes,
+                           byte depth, int[] order, double[] altitudes, int from, int to) {
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.idxLatitudes = idxLatitudes;
+            this.idxLongitudes = idxLongitudes;
+            this.depth = depth;
+            this.order = order;
+            this.altitudes = altitudes;
+            this.from = from;
+            this.to = to;
         }
-        //fetch first available tile in current tree
-        ElevationTile current = fetchTile(idxLatitude >> (depth - propagationDepth),
-                idxLongitude >> (depth - propagationDepth), propagationDepth);
 
-        if (DEBUG) {
-            current.storeDebugImage(new File("./work/test_" + "current" + ".png"), 1, 24);
+        @Override
+        protected void compute() {
+            if (to - from > BULK_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BulkLookup(latitudes, longitudes, idxLatitudes, idxLongitudes, depth, order,
+                                altitudes, from, middle),
+                        new BulkLookup(latitudes, longitudes, idxLatitudes, idxLongitudes, depth, order,
+                                altitudes, middle, to));
+                return;
+            }
+
+            ElevationTile tile = null;
+            for (int position = from; position < to; position++) {
+                int i = order[position];
+                if (tile == null || position == from || idxLatitudes[i] != idxLatitudes[order[position - 1]]
+                        || idxLongitudes[i] != idxLongitudes[order[position - 1]]) {
+                    tile = fetchTile(idxLatitudes[i], idxLongitudes[i], depth);
+                }
+                //areas without data in the tile are looked up in coarser tiles
+                altitudes[i] = tile != null ? lookupElevationM(tile, latitudes[i], longitudes[i]) : Double.NaN;
+            }
         }
+    }
 
-        //create target tile and store it
-        ElevationTile target = new ElevationTile(data, idxLatitude, idxLongitude, depth, resolution);
+    /**
+     * Will read altitude from given tile, areas without data in the tile are
+     * looked up in coarser tiles. Altitude cache is not used.
+     *
+     * @param tile      containing given latlong
+     * @param latitude  in degrees
+     * @param longitude in degrees
+     * @return altitude in meters or NaN if no tile has data at given point
+     */
+    private double lookupElevationM(ElevationTile tile, double latitude, double longitude) {
+        double altitude = readElevationM(tile, latitude, longitude);
+        while (Double.isNaN(altitude) && tile.depth > 0) {
+            tile = fetchTile(latitude, longitude, (byte) (tile.depth - 1));
+            if (tile == null) {
+                break;
+            }
+            altitude = readElevationM(tile, latitude, longitude);
+        }
+        return altitude;
+    }
 
-        if (DEBUG) {
-            target.storeDebugImage(new File("./work/test_" + "target" + ".png"), 1, 24);
+    /**
+     * Will read altitude from given tile. Tiles of off-heap store or shared
+     * cache are read as its readers and tile evicted meanwhile is loaded
+     * again.
+     *
+     * @param tile      containing given latlong
+     * @param latitude  in degrees
+     * @param longitude in degrees
+     * @return altitude in meters or NaN if the tile has no data at given point
+     */
+    private double readElevationM(ElevationTile tile, double latitude, double longitude) {
+        TileReaders store = getTileReaders();
+        if (store == null) {
+            return tile.getElevationM(latitude, longitude);
+        }
+        while (true) {
+            store.enter();
+            try {
+                if (tile.hasData()) {
+                    //tile released since the check yields NaN and is fetched again
+                    double elevation = tile.getElevationM(latitude, longitude);
+                    if (!Double.isNaN(elevation) || tile.hasData()) {
+                        return elevation;
+                    }
+                }
+            } finally {
+                store.exit();
+            }
+            tile = fetchTile(tile.idxLatitude, tile.idxLongitude, tile.depth);
+            if (tile == null) {
+                return Double.NaN;
+            }
         }
+    }
 
-        //while current tile is not target tile
-        while (!current.equals(target)) {
-            //pick tile out of four children containing target tile as next
-            ElevationTile next = current.getChild(target);
+    /**
+     * @return store whose tiles are read as its readers or <code>null</code>
+     * if tiles are cached on heap
+     */
+    private TileReaders getTileReaders() {
+        TileSlabStore store = offHeapTiles;
+        return store != null ? store : sharedTiles;
+    }
 
-            if (VERBOSE) {
-                System.out.println("> Building " + next);
-            }
-
-            //try to acquire existing tile from definition next has. In case that
-            //tile already exists, it may have data from previous runs in some
-            //of its parts and those should be preserved. Depth needs to be compared
-            //since fetch tile call gets closest available and not tile on the 
-            //exact coordinates
-            ElevationTile existing = fetchTile(next.idxLatitude, next.idxLongitude, next.depth);
-            if (existing != null && next.depth == existing.depth) {
-                next = existing;
-                if (VERBOSE) {
-                    System.out.println("> Source replaced " + next);
+    /**
+     * Will replace cache of altitudes by empty one holding given count of
+     * entries (rounded up to power of two).
+     *
+     * @param entries maximum count of cached altitudes
+     */
+    public void setAltitudeCacheSize(int entries) {
+        altitudeCache = new AltitudeCache(entries);
+    }
+
+    /**
+     * @return cache of altitudes with its hit and miss counters
+     */
+    public AltitudeCache getAltitudeCache() {
+        return altitudeCache;
+    }
+
+    /**
+     * Will enable or disable quantization of tiles loaded from now on. Quantized
+     * tiles take quarter of the memory at the cost of decimetre precision.
+     *
+     * @param quantized true if loaded tiles should be quantized
+     */
+    public void setQuantized(boolean quantized) {
+        this.quantized = quantized;
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /**
+     * Will move cache of tiles off heap. Tiles loaded from now on are copied
+     * into direct memory slabs limited by given capacity and least recently
+     * used tiles are evicted when the capacity is exhausted. Samples are kept
+     * quantized if {@link #isQuantized()}, in full precision otherwise. Heap
+     * usage then does not depend on count of cached tiles. Off-heap store
+     * evicts tiles on its own, pinned tiles included, and the budget of
+     * {@link #getTileCache()} still applies to the tiles in it.
+     *
+     * @param capacity in bytes, zero to return to heap cache
+     */
+    public synchronized void setOffHeapCapacity(long capacity) {
+        releaseSharedTiles();
+        tileCache.clear();
+        offHeapTiles = capacity <= 0 ? null : new TileSlabStore(resolution,
+                quantized ? TileFormat.SampleType.INT16 : TileFormat.SampleType.FLOAT64, capacity);
+    }
+
+    /**
+     * Will cache tiles loaded from now on in given file mapped to memory and
+     * shared with other processes of the host, e.g. other inflators started
+     * over the same region, see {@link SharedTileCache}. Tiles already decoded
+     * by another process are read in place instead of being loaded. Segment
+     * of given capacity is created if the file is not a segment yet, it has to
+     * be placed in memory-backed file system such as <code>/dev/shm</code> to
+     * avoid writes to disk. Samples are kept quantized if
+     * {@link #isQuantized()}. Off-heap store is disabled meanwhile.
+     *
+     * @param file     of the segment, <code>null</code> to stop sharing
+     * @param capacity in bytes of new segment, at most 2 GB
+     * @throws IOException in case the segment cannot be mapped or it was
+     *                     created for another repository, resolution or sample type
+     */
+    public synchronized void setSharedTileCache(File file, long capacity) throws IOException {
+        if (isZeroMap) {
+            return;
+        }
+        SharedTileCache shared = file == null ? null : SharedTileCache.open(file, capacity, resolution,
+                quantized ? TileFormat.SampleType.INT16 : TileFormat.SampleType.FLOAT64, repositoryPath);
+        releaseSharedTiles();
+        tileCache.clear();
+        offHeapTiles = null;
+        sharedTiles = shared;
+    }
+
+    /**
+     * @return cache of tiles shared with other processes with its statistics
+     * or <code>null</code> if tiles are not shared
+     */
+    public SharedTileCache getSharedTileCache() {
+        return sharedTiles;
+    }
+
+    /**
+     * Will release all cached tiles of shared cache, so other processes may
+     * recycle their slots. Caller has to hold lock of this map.
+     */
+    private void releaseSharedTiles() {
+        SharedTileCache shared = sharedTiles;
+        if (shared == null) {
+            return;
+        }
+        sharedTiles = null;
+        for (Map.Entry<Long, ElevationTile> tile : tileCache.getTiles().entrySet()) {
+            shared.release(tile.getKey(), tile.getValue());
+        }
+    }
+
+    /**
+     * @return capacity of off-heap tile cache in bytes, zero if tiles are cached on heap
+     */
+    public synchronized long getOffHeapCapacity() {
+        if (offHeapTiles == null) {
+            return 0;
+        }
+        TileSlabAllocator allocator = offHeapTiles.getAllocator();
+        return (long) allocator.getMaximumSlots() * allocator.getSlotSize();
+    }
+
+    /**
+     * Will change budget of the tile cache, evicting tiles if needed.
+     *
+     * @param budget maximum bytes of cached tiles
+     */
+    public void setTileCacheBudget(long budget) {
+        tileCache.setBudget(budget);
+        compressDemotedTiles();
+    }
+
+    /**
+     * @return cache of tiles with its statistics
+     */
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Will change budget of the second tier of the tile cache, which holds
+     * tiles evicted from {@link #getTileCache()} compressed in memory.
+     * Compressed tile takes several times less memory and its lookups
+     * decompress single block of samples, tile hit repeatedly is decompressed
+     * back to the first tier. Tier is not filled while off-heap store is used,
+     * see {@link #setOffHeapCapacity(long)}.
+     *
+     * @param budget maximum bytes of compressed tiles, zero to disable the tier
+     */
+    public void setCompressedTileCacheBudget(long budget) {
+        compressedTileCache.setBudget(budget);
+    }
+
+    /**
+     * @return second tier of the tile cache with its statistics, see
+     * {@link #setCompressedTileCacheBudget(long)}
+     */
+    public TileCache getCompressedTileCache() {
+        return compressedTileCache;
+    }
+
+    /**
+     * Will record accesses of tiles loaded from now on in given store, so the
+     * store evicts least recently used tiles from the repository, see
+     * {@link #trimTileStore()}.
+     *
+     * @param tileStore of the repository of this map, <code>null</code> for none
+     */
+    public void setTileStore(TileStore tileStore) {
+        this.tileStore = tileStore;
+    }
+
+    public TileStore getTileStore() {
+        return tileStore;
+    }
+
+    /**
+     * Will evict least recently used tiles from the repository until it meets
+     * budget of the store, see {@link TileStore#trim()}. Cached tiles count as
+     * accessed now. Evicted tiles are dropped from caches and index of this
+     * map, lookups fall back to their ancestors.
+     *
+     * @return keys of evicted tiles
+     * @throws IOException in case the store fails to trim the repository
+     */
+    public List<Long> trimTileStore() throws IOException {
+        TileStore store = tileStore;
+        if (isZeroMap || store == null) {
+            return new ArrayList<Long>();
+        }
+        for (long key : tileCache.getTiles().keySet()) {
+            store.recordAccess(key);
+        }
+        for (long key : compressedTileCache.getTiles().keySet()) {
+            store.recordAccess(key);
+        }
+        List<Long> evicted = store.trim();
+        refreshSnapshot();
+        for (long key : evicted) {
+            dropTile(key);
+        }
+        if (!evicted.isEmpty()) {
+            altitudeCache.clear();
+        }
+        return evicted;
+    }
+
+    /**
+     * Will write keys of cached tiles with count of their accesses to given
+     * snapshot file, so the hot tiles can be loaded by next run, see
+     * {@link #loadSnapshot(File)}.
+     *
+     * @param file     of the snapshot
+     * @param withData true if the tiles should be stored as well, otherwise
+     *                 they are loaded from the repository again
+     * @throws IOException in case of write failure
+     */
+    public void saveSnapshot(File file, boolean withData) throws IOException {
+        if (isZeroMap) {
+            return;
+        }
+        Map<Long, Integer> accesses = tileCache.getAccessCounts();
+        Map<Long, Long> versions = new HashMap<Long, Long>();
+        for (long key : accesses.keySet()) {
+            versions.put(key, getVersion(key));
+        }
+        CacheSnapshot.save(file, resolution, accesses, withData ? tileCache.getTiles() : null, versions);
+    }
+
+    /**
+     * Will load tiles of given snapshot into the cache, most accessed first,
+     * until the budget of the cache is reached. Tiles not present in the
+     * repository anymore are skipped, stored tiles are used only if they are
+     * of current version of the tile, otherwise the tile is loaded from the
+     * repository.
+     *
+     * @param file of the snapshot
+     * @return count of loaded tiles
+     * @throws IOException in case the snapshot cannot be read
+     */
+    public int loadSnapshot(File file) throws IOException {
+        if (isZeroMap) {
+            return 0;
+        }
+        int loaded = 0;
+        for (CacheSnapshot.Entry entry : CacheSnapshot.load(file, resolution)) {
+            if (tileCache.getWeight() >= tileCache.getBudget()) {
+                break;
+            }
+            if (tileIndex.get(entry.key) == null || tileCache.contains(entry.key)) {
+                continue;
+            }
+            int idxLatitude = TileKey.getLatitudeIndex(entry.key);
+            int idxLongitude = TileKey.getLongitudeIndex(entry.key);
+            byte depth = TileKey.getDepth(entry.key);
+
+            ElevationTile tile = null;
+            if (entry.record != null && entry.version == getVersion(entry.key)) {
+                try {
+                    SampleBuffer buffer = TileFormat.read(entry.record, idxLatitude, idxLongitude, depth, resolution);
+                    tile = cacheTile(entry.key, new ElevationTile(buffer, idxLatitude, idxLongitude, depth, resolution));
+                    compressDemotedTiles();
+                } catch (IOException e) {
+                    Logger.logWarning("Invalid tile (" + idxLatitude + ", " + idxLongitude + ", " + depth
+                            + ") in cache snapshot '" + file + "'!", e);
                 }
-            } else {
-                //copy data from current tile to next, as next is completely empty
-                //tile and data from current is the closest available stuff
-                next.setData(current);
             }
+            if (tile == null) {
+                tile = fetchTile(idxLatitude, idxLongitude, depth);
+            }
+            if (tile != null) {
+                tileCache.addAccesses(entry.key, entry.accesses - 1);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
 
-            if (DEBUG) {
-                File file = getTileFile(next.idxLatitude, next.idxLongitude, next.depth);
-                if (VERBOSE) {
-                    System.out.println("Storing debug file " + file.getAbsolutePath());
+    /**
+     * Will load tiles of given snapshot on background thread, see
+     * {@link #loadSnapshot(File)}. Map may be used meanwhile.
+     *
+     * @param file of the snapshot
+     * @return started daemon thread
+     */
+    public Thread loadSnapshotInBackground(final File file) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int loaded = loadSnapshot(file);
+                    if (VERBOSE) {
+                        System.out.println("Loaded " + loaded + " tiles of cache snapshot " + file);
+                    }
+                } catch (IOException e) {
+                    Logger.logWarning("Failed to load cache snapshot '" + file + "'!", e);
                 }
-                next.storeDebugImage(file, 1, 24);
             }
+        }, "snapshot-loader");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Will load tiles covering given box (tiles of maximum depth or best
+     * available ones) and protect them against eviction from tile cache, e.g.
+     * for the area of an active mission. Each call has to be matched by call
+     * of {@link #unpinTiles(double, double, double, double)} with same box.
+     *
+     * @param southLatitude of the box in degrees
+     * @param westLongitude of the box in degrees
+     * @param northLatitude of the box in degrees
+     * @param eastLongitude of the box in degrees
+     */
+    public void pinTiles(double southLatitude, double westLongitude, double northLatitude, double eastLongitude) {
+        pinTiles(southLatitude, westLongitude, northLatitude, eastLongitude, true);
+    }
 
-            //copy input data to next (override)
-            next.setData(target);
+    /**
+     * Will release tiles pinned by
+     * {@link #pinTiles(double, double, double, double)} for given box.
+     *
+     * @param southLatitude of the box in degrees
+     * @param westLongitude of the box in degrees
+     * @param northLatitude of the box in degrees
+     * @param eastLongitude of the box in degrees
+     */
+    public void unpinTiles(double southLatitude, double westLongitude, double northLatitude, double eastLongitude) {
+        pinTiles(southLatitude, westLongitude, northLatitude, eastLongitude, false);
+    }
 
-            //save next in folder structure
-            next.store(getTileFile(next.idxLatitude, next.idxLongitude, next.depth), 24);
+    private void pinTiles(double southLatitude, double westLongitude,
+                          double northLatitude, double eastLongitude, boolean pin) {
+        if (isZeroMap) {
+            return;
+        }
+        double degreesPerTile = 360.0 / (2 << maximumDepth);
+        int idxSouth = (int) Math.floor((southLatitude + 90) / degreesPerTile) - (southLatitude == 90 ? 1 : 0);
+        int idxNorth = (int) Math.floor((northLatitude + 90) / degreesPerTile) - (northLatitude == 90 ? 1 : 0);
+        int idxWest = (int) Math.floor((westLongitude + 180) / degreesPerTile) - (westLongitude == 180 ? 1 : 0);
+        int idxEast = (int) Math.floor((eastLongitude + 180) / degreesPerTile) - (eastLongitude == 180 ? 1 : 0);
 
-            if (DEBUG) {
-                File file = getTileFile(next.idxLatitude, next.idxLongitude, next.depth);
-                ;
-                if (VERBOSE) {
-                    System.out.println("Storing debug file " + file.getAbsolutePath());
+        for (int idxLatitude = idxSouth; idxLatitude <= idxNorth; idxLatitude++) {
+            for (int idxLongitude = idxWest; idxLongitude <= idxEast; idxLongitude++) {
+                ElevationTile tile = fetchTile(idxLatitude, idxLongitude, maximumDepth);
+                if (tile == null) {
+                    continue;
+                }
+                long key = TileKey.getKey(tile.idxLatitude, tile.idxLongitude, tile.depth);
+                if (pin) {
+                    tileCache.pin(key);
+                    //tile fetched before pinning may have been refused by full cache
+                    tileCache.put(key, tile);
+                } else {
+                    tileCache.unpin(key);
                 }
-                next.storeDebugImage(file, 1, 24);
             }
+        }
+        compressDemotedTiles();
+    }
+
+    /**
+     * Will find highest terrain in given box. Quad tree is walked from its
+     * root down to maximum depth through every present tile, so each part of
+     * the box is answered by the same best available tile as
+     * {@link #getElevationM(double, double)} and averaging of coarser tiles
+     * never hides extremes of finer ones. Tiles fully covered by the box are
+     * answered from the top of their summary, raw samples are read only along
+     * edges of the box. Areas without any data are ignored.<br><br>
+     * Subtrees without deeper tiles are skipped, so the walk visits present
+     * tiles intersecting the box and their ancestors, that is O(tiles) in the
+     * box at maximum depth.
+     *
+     * @param southLatitude of the box in degrees
+     * @param westLongitude of the box in degrees
+     * @param northLatitude of the box in degrees
+     * @param eastLongitude of the box in degrees
+     * @return maximum in meters or NaN if there is no data in the box
+     */
+    public double getMaximumElevationM(double southLatitude, double westLongitude,
+                                       double northLatitude, double eastLongitude) {
+        return getExtremeElevationM(southLatitude, westLongitude, northLatitude, eastLongitude, true);
+    }
+
+    /**
+     * Will find lowest terrain in given box, see
+     * {@link #getMaximumElevationM(double, double, double, double)}.
+     *
+     * @param southLatitude of the box in degrees
+     * @param westLongitude of the box in degrees
+     * @param northLatitude of the box in degrees
+     * @param eastLongitude of the box in degrees
+     * @return minimum in meters or NaN if there is no data in the box
+     */
+    public double getMinimumElevationM(double southLatitude, double westLongitude,
+                                       double northLatitude, double eastLongitude) {
+        return getExtremeElevationM(southLatitude, westLongitude, northLatitude, eastLongitude, false);
+    }
 
-            //set next as current
-            current = next;
+    /**
+     * Will walk both roots of the quad tree (tiles of depth zero).
+     */
+    private double getExtremeElevationM(double southLatitude, double westLongitude,
+                                        double northLatitude, double eastLongitude, boolean maximum) {
+        if (isZeroMap) {
+            return 0;
         }
-        if (VERBOSE) {
-            System.out.println("> Construction done\n");
+        double extreme = Double.NaN;
+        for (int idxLongitude = 0; idxLongitude < 2; idxLongitude++) {
+            extreme = pickExtreme(extreme, getExtremeElevationM(TileKey.getKey(0, idxLongitude, (byte) 0), -1,
+                    southLatitude, westLongitude, northLatitude, eastLongitude, maximum), maximum);
+        }
+        return extreme;
+    }
+
+    /**
+     * Will find extreme of part of the box inside of given tile of the quad
+     * tree. Tile is included when the box reaches its south or west edge, same
+     * as tile lookup of a point.
+     *
+     * @param key          of the tile
+     * @param coveringKey  deepest present ancestor of the tile or -1
+     * @param south        of the box in degrees
+     * @param west         of the box in degrees
+     * @param north        of the box in degrees
+     * @param east         of the box in degrees
+     * @param maximum      true for maximum, false for minimum
+     * @return extreme in meters or NaN if there is no data
+     */
+    private double getExtremeElevationM(long key, long coveringKey, double south, double west,
+                                        double north, double east, boolean maximum) {
+        byte depth = TileKey.getDepth(key);
+        double degreesPerTile = 180.0 / (1 << depth);
+        double tileSouth = TileKey.getLatitudeIndex(key) * degreesPerTile - 90;
+        double tileWest = TileKey.getLongitudeIndex(key) * degreesPerTile - 180;
+        double tileNorth = tileSouth + degreesPerTile;
+        double tileEast = tileWest + degreesPerTile;
+        if (north < tileSouth || (south >= tileNorth && tileNorth < 90)
+                || east < tileWest || (west >= tileEast && tileEast < 180)) {
+            return Double.NaN;
+        }
+
+        //deeper tiles answer for their area instead of present tile, which
+        //holds just their average
+        if (tileIndex.get(key) != null) {
+            coveringKey = key;
+        }
+        if (depth < maximumDepth && tileIndex.getSubtree(key).higher(key) != null) {
+            double extreme = Double.NaN;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                extreme = pickExtreme(extreme, getExtremeElevationM(TileKey.getChild(key, quadrant),
+                        coveringKey, south, west, north, east, maximum), maximum);
+            }
+            return extreme;
+        }
+        if (coveringKey < 0) {
+            return Double.NaN;
+        }
+
+        //part of the box inside of this tile, read from deepest present tile,
+        //fully covered tile is answered from its summary
+        ElevationTile tile = fetchTile(TileKey.getLatitudeIndex(coveringKey), TileKey.getLongitudeIndex(coveringKey),
+                TileKey.getDepth(coveringKey));
+        if (tile == null) {
+            return Double.NaN;
         }
+        return readExtremeElevationM(tile, Math.max(south, tileSouth), Math.max(west, tileWest),
+                Math.min(north, tileNorth), Math.min(east, tileEast), maximum);
     }
 
     /**
-     * This class serves as key for altitude value for cache lookup. It encapsulates
-     * latitude and longitude in degrees. This key makes sense only on guaranteed
-     * repeated requests, as full double precision is compared.
+     * @return extreme of given values ignoring NaN
      */
-    private final class PositionKey {
-        /**
-         * Latitude in degrees
-         */
-        private final double latitude;
+    private static double pickExtreme(double current, double value, boolean maximum) {
+        if (Double.isNaN(current)) {
+            return value;
+        }
+        if (Double.isNaN(value)) {
+            return current;
+        }
+        return maximum ? Math.max(current, value) : Math.min(current, value);
+    }
 
-        /**
-         * Longitude in degrees
-         */
-        private final double longitude;
+    /**
+     * Will read extreme of part of given tile, see
+     * {@link #readElevationM(ElevationTile, double, double)}.
+     */
+    private double readExtremeElevationM(ElevationTile tile, double south, double west,
+                                         double north, double east, boolean maximum) {
+        TileReaders store = getTileReaders();
+        while (true) {
+            if (store != null) {
+                store.enter();
+            }
+            try {
+                if (store == null || tile.hasData()) {
+                    return maximum ? tile.getMaximumElevationM(south, west, north, east)
+                            : tile.getMinimumElevationM(south, west, north, east);
+                }
+            } finally {
+                if (store != null) {
+                    store.exit();
+                }
+            }
+            tile = fetchTile(tile.idxLatitude, tile.idxLongitude, tile.depth);
+            if (tile == null) {
+                return Double.NaN;
+            }
+        }
+    }
 
-        /**
-         * Pre-calculated hash
-         */
-        private final int hash;
+    /**
+     * @return maximum depth of tiles tried by lookups without specified depth
+     */
+    public byte getMaximumDepth() {
+        return maximumDepth;
+    }
 
-        /**
-         * Will create key for given latlong and pre-calculate hash.
-         *
-         * @param latitude  in degrees
-         * @param longitude in degrees
-         */
-        public PositionKey(double latitude, double longitude) {
-            this.latitude = latitude;
-            this.longitude = longitude;
+    /**
+     * @return true if this map always returns zero and loads no data
+     */
+    public boolean isZeroMap() {
+        return isZeroMap;
+    }
+
+    /**
+     * Will insert new elevation map tile in currently used elevation map structure
+     * and will update all the levels above it. This method is here to couple all
+     * methods operating data for this class. Use
+     * {@link #buildElevationMapTiles(Collection, byte)} to insert more tiles.
+     *
+     * @param idxLatitude      in the quad tree
+     * @param idxLongitude     in the quad tree
+     * @param depth            in the quad tree
+     * @param data             array containing elevations in meters where (0,0) corresponds
+     *                         to left upper corner of the tile and (lenght.x, length.y) to right lower
+     *                         corner. Indexing follows (x,y).
+     * @param propagationDepth depth below which the levels are updated
+     * @throws IOException in case of failed save of some tile
+     */
+    public void buildElevationMapTile(int idxLatitude, int idxLongitude, byte depth,
+                                      double[][] data, byte propagationDepth) throws IOException {
+        buildElevationMapTiles(Collections.singletonList(
+                new ElevationTile(data, idxLatitude, idxLongitude, depth, resolution)), propagationDepth);
+    }
 
-            final int prime = 31;
-            int result = 1;
-            long temp;
-            temp = Double.doubleToLongBits(latitude);
-            result = prime * result + (int) (temp ^ (temp >>> 32));
-            temp = Double.doubleToLongBits(longitude);
-            result = prime * result + (int) (temp ^ (temp >>> 32));
+    /**
+     * Will insert new elevation map tiles in currently used elevation map
+     * structure and will update all the levels above them up to (excluding)
+     * given propagation depth. Affected tiles are built bottom-up level by
+     * level, tiles of one level in parallel, and every affected tile is stored
+     * exactly once. Affected tile starts with its existing data, or data
+     * resampled from closest available coarser tile, and data of inserted tile
+     * and of its rebuilt children are placed over it.<br><br>
+     * Tiles are stored copy-on-write as new generation of the repository, see
+     * {@link TileManifest}, which becomes visible to this map at the end and
+     * to other maps reading the repository once they
+     * {@link #refreshSnapshot()}. Concurrent builds of other processes wait
+     * for each other.
+     *
+     * @param tiles            to be inserted, with data and in resolution of this map,
+     *                         all deeper than propagation depth
+     * @param propagationDepth depth below which the levels are updated
+     * @throws IOException in case of failed save of some tile
+     */
+    public void buildElevationMapTiles(Collection<ElevationTile> tiles, byte propagationDepth) throws IOException {
+        if (VERBOSE) {
+            System.out.println("> Construction of tile structure");
+        }
+        //keys of inserted tiles and their ancestors by depth
+        final Map<Long, ElevationTile> inserted = new HashMap<Long, ElevationTile>();
+        TreeMap<Byte, Set<Long>> levels = new TreeMap<Byte, Set<Long>>();
+        for (ElevationTile tile : tiles) {
+            if (tile.depth <= propagationDepth || !tile.hasData()) {
+                throw new IllegalArgumentException("Cannot insert " + tile + " below depth " + propagationDepth + "!");
+            }
+            long key = TileKey.getKey(tile.idxLatitude, tile.idxLongitude, tile.depth);
+            inserted.put(key, tile);
+            for (; TileKey.getDepth(key) > propagationDepth; key = TileKey.getParent(key)) {
+                Set<Long> level = levels.get(TileKey.getDepth(key));
+                if (level == null) {
+                    level = new HashSet<Long>();
+                    levels.put(TileKey.getDepth(key), level);
+                }
+                level.add(key);
+            }
+        }
 
-            hash = result;
+        //tiles are written copy-on-write and published all at once, other
+        //writers are excluded and newest generation is built upon
+        File repository = new File(repositoryPath);
+        FileLock lock = TileManifest.lock(repository);
+        try {
+            refreshSnapshot();
+            TileManifest current = manifest;
+            List<Long> written = new ArrayList<Long>();
+            for (Set<Long> level : levels.values()) {
+                written.addAll(level);
+            }
+            buildLevels(levels, inserted, current.getGeneration() + 1);
+            applyManifest(current, current.publish(repository, written));
+            TileStore store = tileStore;
+            if (store != null) {
+                for (long key : written) {
+                    store.recordAccess(key);
+                }
+            }
+        } finally {
+            lock.channel().close();
         }
 
-        @Override
-        public int hashCode() {
-            return hash;
+        if (VERBOSE) {
+            System.out.println("> Construction done\n");
         }
+    }
 
-        @Override
-        public boolean equals(Object that) {
-            if (this == that) {
-                return true;
+    /**
+     * Will build and store tiles of given levels bottom-up, tiles of one level
+     * in parallel.
+     *
+     * @param levels   keys of tiles to be built by depth
+     * @param inserted tiles inserted by their keys
+     * @param version  generation the tiles are stored in
+     * @throws IOException in case of failed save of some tile
+     */
+    private void buildLevels(TreeMap<Byte, Set<Long>> levels, final Map<Long, ElevationTile> inserted,
+                             final long version) throws IOException {
+        //children are built before their parents, only last level is kept
+        final Map<Long, ElevationTile> built = new HashMap<Long, ElevationTile>();
+        for (Set<Long> level : levels.descendingMap().values()) {
+            List<Callable<ElevationTile>> tasks = new ArrayList<Callable<ElevationTile>>(level.size());
+            for (final long key : level) {
+                tasks.add(new Callable<ElevationTile>() {
+                    @Override
+                    public ElevationTile call() throws IOException {
+                        return buildTile(key, inserted.get(key), built, version);
+                    }
+                });
             }
-            if (that == null) {
-                return false;
+            List<ElevationTile> results = new ArrayList<ElevationTile>(tasks.size());
+            for (Future<ElevationTile> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                try {
+                    results.add(result.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Construction of tile structure interrupted!", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException("Construction of tile structure failed!", e.getCause());
+                }
+            }
+            built.clear();
+            for (ElevationTile tile : results) {
+                built.put(TileKey.getKey(tile.idxLatitude, tile.idxLongitude, tile.depth), tile);
             }
-            if (this.getClass() != that.getClass()) {
-                return false;
+        }
+    }
+
+    /**
+     * Will build and store single tile of
+     * {@link #buildElevationMapTiles(Collection, byte)}.
+     *
+     * @param key      of the tile
+     * @param inserted tile inserted at this place or <code>null</code>
+     * @param children rebuilt tiles of level below
+     * @param version  generation the tile is stored in
+     * @return built tile
+     * @throws IOException in case of failed save of the tile
+     */
+    private ElevationTile buildTile(long key, ElevationTile inserted, Map<Long, ElevationTile> children,
+                                    long version) throws IOException {
+        int idxLatitude = TileKey.getLatitudeIndex(key);
+        int idxLongitude = TileKey.getLongitudeIndex(key);
+        byte depth = TileKey.getDepth(key);
+
+        //start with existing tile or closest available data, existing tile
+        //may be read by other threads, so copy is modified
+        ElevationTile tile = null;
+        ElevationTile existing = fetchTile(idxLatitude, idxLongitude, depth);
+        double[] samples = existing != null && existing.depth == depth ? existing.getSamples() : null;
+        if (samples != null) {
+            tile = new ElevationTile(samples.clone(), idxLatitude, idxLongitude, depth, resolution);
+        } else {
+            tile = new ElevationTile(idxLatitude, idxLongitude, depth, resolution);
+            if (existing != null) {
+                tile.setData(existing);
             }
-            double thatLatitude = ((PositionKey) that).latitude;
-            if (Double.doubleToLongBits(this.latitude) != Double.doubleToLongBits(thatLatitude)) {
-                return false;
+        }
+        if (VERBOSE) {
+            System.out.println("> Building " + tile);
+        }
+
+        //place new data over it, samples the new data has no value for keep
+        //the data stored before
+        if (inserted != null) {
+            double[] previous = tile.hasData() ? tile.getSamples().clone() : null;
+            tile.setData(inserted);
+            if (previous != null) {
+                double[] merged = tile.getSamples();
+                for (int i = 0; i < merged.length; i++) {
+                    if (Double.isNaN(merged[i])) {
+                        merged[i] = previous[i];
+                    }
+                }
             }
-            double thatLongitude = ((PositionKey) that).longitude;
-            if (Double.doubleToLongBits(this.longitude) != Double.doubleToLongBits(thatLongitude)) {
-                return false;
+        }
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            ElevationTile child = children.get(TileKey.getChild(key, quadrant));
+            if (child != null) {
+                tile.setData(child);
             }
-            return true;
         }
+
+        //save new version of the tile, it is read once published
+        tile.narrow(scheme.getWidth(idxLatitude, depth, resolution));
+        File directory = getTileDirectory(TileKey.getLatitudeIndex(key), TileKey.getLongitudeIndex(key),
+                TileKey.getDepth(key));
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create tile directory '" + directory + "'!");
+        }
+        tile.store(new File(directory, TileManifest.getFileName(key, version)), 24);
+        return tile;
     }
 }
@@ -6,6 +6,9 @@ import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -39,7 +42,17 @@ import javax.imageio.ImageIO;
  * Elevation value is first offset by 100 to get positive values and then fitted
  * proportionally to range 0-255 by division of the value by 10000 meters and then
  * multiplication by 255. 10000 is arbitrary constant based on sea level offset
- * and highest land point on earth.
+ * and highest land point on earth.<br><br>
+ * <p>
+ * <h5>Mapped tile format</h5>
+ * Files with {@link TileFormat#EXTENSION} extension are memory mapped and
+ * samples are read directly from the mapping, see {@link TileFormat}.
+ * <p>
+ * <h5>Narrow tiles</h5>
+ * Tile backed by a buffer may have fewer samples per row than resolution,
+ * see {@link TileScheme#ADAPTIVE}. Lookups read the narrow samples directly,
+ * while whole-tile operations (resampling, summary, images) see the tile as
+ * square with each narrow sample repeated along its row.
  *
  * @author Kaiser Vojtech
  * @author Jan Zaloudek
@@ -81,9 +94,27 @@ public class ElevationTile {
     public final byte depth;
 
     /**
-     * Array of elevation values for this tile in meters.
+     * Array of elevation values for this tile in meters in row-major order,
+     * value at (x,y) is stored at index {@code y*resolution+x}.
+     */
+    private double[] data = null;
+
+    /**
+     * Samples backed by a byte buffer, typically memory mapped tile file. When
+     * set, elevations are read from this buffer instead of {@link #data}.
      */
-    private double[][] data = null;
+    private volatile SampleBuffer buffer = null;
+
+    /**
+     * True once the buffer was released, see {@link #release(SampleBuffer)}.
+     */
+    private volatile boolean released = false;
+
+    /**
+     * Summary of samples of this tile, built on first use when it is not stored
+     * along with the samples. Cleared whenever samples change.
+     */
+    private volatile TileSummary summary = null;
 
     /**
      * Will create tile with no data. Any request for elevation from tile
@@ -121,10 +152,40 @@ public class ElevationTile {
         this.setData(data);
     }
 
+    /**
+     * Will create new tile with given samples in row-major order.
+     *
+     * @param samples      to be stored, see {@link #setSamples(double[])}
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param resolution   resolution of tiles
+     */
+    public ElevationTile(double[] samples, int idxLatitude, int idxLongitude, byte depth, int resolution) {
+        this(idxLatitude, idxLongitude, depth, resolution);
+        this.setSamples(samples);
+    }
+
+    /**
+     * Will create new tile reading its samples from given buffer.
+     *
+     * @param buffer       containing samples, e.g. mapped {@link TileFormat} record
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param resolution   resolution of tiles
+     */
+    public ElevationTile(SampleBuffer buffer, int idxLatitude, int idxLongitude, byte depth, int resolution) {
+        this(idxLatitude, idxLongitude, depth, resolution);
+        assert (buffer.getWidth() <= resolution && buffer.getHeight() == resolution);
+        this.buffer = buffer;
+    }
+
     /**
      * Will create tile of given indices containing data from given file tied
-     * to given depth. In case file is binary, USHORT byte scheme will be used,
-     * otherwise image file of 24 bit depth will be expected.
+     * to given depth. In case file is in {@link TileFormat}, it is memory mapped.
+     * In case file is binary, serialized doubles will be read, otherwise image
+     * file of 24 bit depth will be expected.
      *
      * @param file         to be loaded
      * @param idxLatitude  of the tile
@@ -136,15 +197,14 @@ public class ElevationTile {
     public ElevationTile(File file, int idxLatitude, int idxLongitude, byte depth, int resolution) throws IOException {
         this(idxLatitude, idxLongitude, depth, resolution);
 
-        if (file.getName().endsWith("bin")) {
+        if (file.getName().endsWith(TileFormat.EXTENSION)) {
+            buffer = TileFormat.map(file, idxLatitude, idxLongitude, depth, resolution);
+        } else if (file.getName().endsWith("bin")) {
 
-            data = new double[resolution][resolution];
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-            for (int y = 0; y < resolution; y++) {
-                for (int x = 0; x < resolution; x++) {
-                    double value = ois.readDouble();
-                    data[x][y] = value;
-                }
+            data = new double[resolution * resolution];
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            for (int i = 0; i < data.length; i++) {
+                data[i] = ois.readDouble();
             }
             ois.close();
         } else {
@@ -157,19 +217,197 @@ public class ElevationTile {
      *
      * @param latitude  of the point in degrees
      * @param longitude of the point in degrees
-     * @return altitude in meters
+     * @return altitude in meters or NaN if this tile has no data there or its
+     * buffer was released meanwhile, see {@link #hasData()}
      */
     public double getElevationM(double latitude, double longitude) {
-        if (data == null) {
+        //buffer is read first, samples replacing it are set before it is cleared
+        SampleBuffer current = buffer;
+        double[] samples = data;
+        if (samples == null && current == null) {
+            if (released) {
+                return Double.NaN;
+            }
             throw new RuntimeException("Cannot look up elevation in empty tile!"
                     + " (" + idxLatitude + ", " + idxLongitude + ", " + depth + ")");
         }
 
         //locate what "pixel" of the tile corresponds to given latlong
-        final int x = (int) Math.max(0, Math.min(resolution - 1, Math.round(Math.abs((longitude - minLongitude) / degreesPerPixel))));
         final int y = (int) Math.max(0, Math.min(resolution - 1, Math.round(Math.abs((minLatitude - latitude) / degreesPerPixel))));
+        if (current != null) {
+            int width = current.getWidth();
+            double degreesPerColumn = degreesPerPixel * resolution / width;
+            int x = (int) Math.max(0, Math.min(width - 1, Math.round(Math.abs((longitude - minLongitude) / degreesPerColumn))));
+            return current.get(x, y);
+        }
+        final int x = (int) Math.max(0, Math.min(resolution - 1, Math.round(Math.abs((longitude - minLongitude) / degreesPerPixel))));
+
+        return samples[y * resolution + x];
+    }
+
+    /**
+     * Will read single sample of this tile, column of narrow tile is mapped
+     * to the nearest narrow column.
+     *
+     * @param x column, from west to east
+     * @param y row, from north to south
+     * @return elevation in meters
+     */
+    private double getSample(int x, int y) {
+        SampleBuffer current = buffer;
+        if (current != null) {
+            int width = current.getWidth();
+            return current.get(width < resolution ? getNarrowColumn(x, width) : x, y);
+        }
+        double[] samples = data;
+        //buffer released meanwhile
+        return samples != null ? samples[y * resolution + x] : Double.NaN;
+    }
+
+    /**
+     * @param x     column of square tile
+     * @param width samples per row of narrow tile
+     * @return nearest column of narrow tile
+     */
+    private int getNarrowColumn(int x, int width) {
+        return (int) Math.min(width - 1, (2L * x * width + resolution) / (2L * resolution));
+    }
+
+    /**
+     * Will return summary of samples of this tile. Summary stored with the
+     * samples is used if available, otherwise it is calculated.
+     *
+     * @return summary of this tile
+     */
+    public TileSummary getSummary() {
+        if (summary == null) {
+            if (!hasData()) {
+                throw new RuntimeException("Cannot summarize empty tile!"
+                        + " (" + idxLatitude + ", " + idxLongitude + ", " + depth + ")");
+            }
+            summary = buffer != null && buffer.getSummary() != null
+                    ? buffer.getSummary() : TileSummary.build(getSamples(), resolution);
+        }
+        return summary;
+    }
+
+    /**
+     * Will find highest elevation in given box. Only samples of this tile whose
+     * nearest point lookup falls in the box are taken into account, areas of
+     * the box outside of the tile are ignored.
+     *
+     * @param southLatitude of the box in degrees
+     * @param westLongitude of the box in degrees
+     * @param northLatitude of the box in degrees
+     * @param eastLongitude of the box in degrees
+     * @return maximum in meters or NaN if there is no data in the box
+     */
+    public double getMaximumElevationM(double southLatitude, double westLongitude,
+                                       double northLatitude, double eastLongitude) {
+        return getExtremeElevationM(southLatitude, westLongitude, northLatitude, eastLongitude, true);
+    }
+
+    /**
+     * Will find lowest elevation in given box, see
+     * {@link #getMaximumElevationM(double, double, double, double)}.
+     *
+     * @param southLatitude of the box in degrees
+     * @param westLongitude of the box in degrees
+     * @param northLatitude of the box in degrees
+     * @param eastLongitude of the box in degrees
+     * @return minimum in meters or NaN if there is no data in the box
+     */
+    public double getMinimumElevationM(double southLatitude, double westLongitude,
+                                       double northLatitude, double eastLongitude) {
+        return getExtremeElevationM(southLatitude, westLongitude, northLatitude, eastLongitude, false);
+    }
 
-        return data[x][y];
+    /**
+     * Will convert the box into range of samples and find extreme there.
+     */
+    private double getExtremeElevationM(double southLatitude, double westLongitude,
+                                        double northLatitude, double eastLongitude, boolean maximum) {
+        double x0 = Math.round((westLongitude - minLongitude) / degreesPerPixel);
+        double x1 = Math.round((eastLongitude - minLongitude) / degreesPerPixel);
+        double y0 = Math.round((minLatitude - northLatitude) / degreesPerPixel);
+        double y1 = Math.round((minLatitude - southLatitude) / degreesPerPixel);
+        if (x1 < 0 || y1 < 0 || x0 > resolution - 1 || y0 > resolution - 1) {
+            return Double.NaN;
+        }
+        TileSummary summary = getSummary();
+        int top = summary.getLevels() - 1;
+        return getExtreme(summary, top, 0, 0, (int) Math.max(0, x0), (int) Math.max(0, y0),
+                (int) Math.min(resolution - 1, x1), (int) Math.min(resolution - 1, y1), maximum);
+    }
+
+    /**
+     * Will find extreme of samples in given range within given cell of the
+     * summary. Cells fully inside of the range are answered from the summary,
+     * partially covered cells are descended and raw samples are read only in
+     * partially covered cells of level zero.
+     *
+     * @param summary of this tile
+     * @param level   of the cell
+     * @param cellX   of the cell
+     * @param cellY   of the cell
+     * @param x0      first column of the range
+     * @param y0      first row of the range
+     * @param x1      last column of the range (inclusive)
+     * @param y1      last row of the range (inclusive)
+     * @param maximum true for maximum, false for minimum
+     * @return extreme in meters or NaN if there is no data
+     */
+    private double getExtreme(TileSummary summary, int level, int cellX, int cellY,
+                              int x0, int y0, int x1, int y1, boolean maximum) {
+        int cellSize = summary.getCellSize(level);
+        int cellX0 = cellX * cellSize;
+        int cellY0 = cellY * cellSize;
+        int cellX1 = Math.min(resolution, cellX0 + cellSize) - 1;
+        int cellY1 = Math.min(resolution, cellY0 + cellSize) - 1;
+        if (cellX0 > x1 || cellY0 > y1 || cellX1 < x0 || cellY1 < y0) {
+            return Double.NaN;
+        }
+
+        //cell completely inside of the range
+        if (cellX0 >= x0 && cellY0 >= y0 && cellX1 <= x1 && cellY1 <= y1) {
+            return maximum ? summary.getMaximum(level, cellX, cellY) : summary.getMinimum(level, cellX, cellY);
+        }
+
+        //cell without any data
+        if (Double.isNaN(summary.getMaximum(level, cellX, cellY))) {
+            return Double.NaN;
+        }
+
+        double extreme = Double.NaN;
+        if (level == 0) {
+            for (int y = Math.max(y0, cellY0); y <= Math.min(y1, cellY1); y++) {
+                for (int x = Math.max(x0, cellX0); x <= Math.min(x1, cellX1); x++) {
+                    extreme = pickExtreme(extreme, getSample(x, y), maximum);
+                }
+            }
+            return extreme;
+        }
+        int children = summary.getCellsPerSide(level - 1);
+        for (int childY = 2 * cellY; childY <= 2 * cellY + 1 && childY < children; childY++) {
+            for (int childX = 2 * cellX; childX <= 2 * cellX + 1 && childX < children; childX++) {
+                extreme = pickExtreme(extreme, getExtreme(summary, level - 1, childX, childY,
+                        x0, y0, x1, y1, maximum), maximum);
+            }
+        }
+        return extreme;
+    }
+
+    /**
+     * @return extreme of given values ignoring NaN
+     */
+    private static double pickExtreme(double current, double value, boolean maximum) {
+        if (Double.isNaN(current)) {
+            return value;
+        }
+        if (Double.isNaN(value)) {
+            return current;
+        }
+        return maximum ? Math.max(current, value) : Math.min(current, value);
     }
 
     /**
@@ -186,23 +424,163 @@ public class ElevationTile {
     }
 
     /**
-     * Will store this tile in given file.
+     * Will store this tile in given file. Files with {@link TileFormat#EXTENSION}
+     * extension are written in {@link TileFormat}, otherwise image is written.
      *
      * @param file      to have the tile stored in
-     * @param precision at which is the file stored
+     * @param precision at which is the file stored (images only)
      * @throws IOException in case of errors
      */
     public void store(File file, int precision) throws IOException {
-        if (data == null) {
+        if (data == null && buffer == null) {
             throw new RuntimeException("Cannot store data from empty tile! (" +
                     idxLatitude + ", " + idxLongitude + ", " + depth + ")");
         }
+        if (file.getName().endsWith(TileFormat.EXTENSION)) {
+            SampleBuffer current = buffer;
+            TileFormat.SampleType type = current != null ? current.getType() : TileFormat.SampleType.FLOAT64;
+            int width = getWidth();
+            TileFormat.write(file, idxLatitude, idxLongitude, depth, getStoredSamples(), width, resolution, type,
+                    getBlockSize(width));
+            return;
+        }
 //        Files.createParentDirs(file);
         String filepath = file.getAbsolutePath();
         ImageIO.write(this.getDataAsImage(precision), filepath.substring(filepath.length() - 3,
                 filepath.length()), file);
     }
 
+    /**
+     * Will write this tile as {@link TileFormat} record keeping its sample type,
+     * width and block size.
+     *
+     * @return heap buffer with the record between position zero and limit
+     */
+    public ByteBuffer toRecord() {
+        if (!hasData()) {
+            throw new RuntimeException("Cannot write record of empty tile! (" +
+                    idxLatitude + ", " + idxLongitude + ", " + depth + ")");
+        }
+        TileFormat.SampleType type = buffer != null ? buffer.getType() : TileFormat.SampleType.FLOAT64;
+        int width = getWidth();
+        int blockSize = getBlockSize(width);
+        ByteBuffer record = ByteBuffer.allocate((int) TileFormat.getRecordSize(width, resolution, type, blockSize));
+        TileFormat.write(record, idxLatitude, idxLongitude, depth, getStoredSamples(), width, resolution, type,
+                blockSize);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Will write this tile as {@link TileFormat} record of given sample type
+     * keeping its width.
+     *
+     * @param target buffer with enough remaining space, see
+     *               {@link TileFormat#getRecordSize(int, TileFormat.SampleType)}
+     * @param type   of samples to be written
+     */
+    void writeRecord(ByteBuffer target, TileFormat.SampleType type) {
+        TileFormat.write(target, idxLatitude, idxLongitude, depth, getStoredSamples(), getWidth(), resolution,
+                type, 0);
+    }
+
+    /**
+     * @param width samples per row of the record
+     * @return block size of the buffer if it divides given width, zero for
+     * contiguous body otherwise
+     */
+    private int getBlockSize(int width) {
+        int blockSize = buffer != null ? buffer.getBlockSize() : 0;
+        return blockSize != 0 && width % blockSize == 0 ? blockSize : 0;
+    }
+
+    /**
+     * Will resample this tile to given count of samples per row, each narrow
+     * sample takes value of the nearest sample of the square tile. Tile keeps
+     * the samples in memory in full precision afterwards.
+     *
+     * @param width samples per row, at most resolution
+     */
+    public void narrow(int width) {
+        if (!hasData()) {
+            throw new RuntimeException("Cannot narrow empty tile!"
+                    + " (" + idxLatitude + ", " + idxLongitude + ", " + depth + ")");
+        }
+        assert (width > 0 && width <= resolution);
+        if (width == getWidth()) {
+            return;
+        }
+        double[] square = getSamples();
+        ByteBuffer samples = ByteBuffer.allocate(8 * width * resolution).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < resolution; y++) {
+            for (int c = 0; c < width; c++) {
+                int x = (int) Math.min(resolution - 1, (2L * c * resolution + width) / (2L * width));
+                samples.putDouble(square[y * resolution + x]);
+            }
+        }
+        samples.flip();
+        SampleBuffer narrowed = new SampleBuffer(samples, TileFormat.SampleType.FLOAT64, width, resolution);
+        this.buffer = narrowed;
+        this.data = null;
+        this.summary = null;
+    }
+
+    /**
+     * @return samples per row, lower than resolution for narrow tile
+     */
+    public int getWidth() {
+        SampleBuffer current = buffer;
+        return current != null ? current.getWidth() : resolution;
+    }
+
+    /**
+     * Will create copy of this tile with samples compressed in memory, see
+     * {@link SampleBuffer#compress()}. Samples keep their type and precision,
+     * samples on heap are compressed in full precision.
+     *
+     * @return compressed copy of this tile, this tile if it is compressed or
+     * constant already
+     */
+    public ElevationTile compress() {
+        if (!hasData()) {
+            throw new RuntimeException("Cannot compress empty tile! (" +
+                    idxLatitude + ", " + idxLongitude + ", " + depth + ")");
+        }
+        SampleBuffer current = buffer;
+        if (current != null && (current.isCompressed() || current.isConstant())) {
+            return this;
+        }
+        if (current == null) {
+            ByteBuffer samples = ByteBuffer.allocate(8 * resolution * resolution).order(ByteOrder.LITTLE_ENDIAN);
+            samples.asDoubleBuffer().put(getSamples());
+            current = new SampleBuffer(samples, TileFormat.SampleType.FLOAT64, resolution, resolution);
+        }
+        ElevationTile compressed = new ElevationTile(current.compress(), idxLatitude, idxLongitude, depth,
+                resolution);
+        if (compressed.buffer.getSummary() == null && summary != null) {
+            compressed.summary = summary.copy();
+        }
+        return compressed;
+    }
+
+    /**
+     * Will create copy of compressed tile with samples decompressed to heap,
+     * see {@link #compress()}.
+     *
+     * @return decompressed copy of this tile, this tile if it is not
+     * compressed
+     */
+    public ElevationTile decompress() {
+        SampleBuffer current = buffer;
+        if (current == null || !current.isCompressed()) {
+            return this;
+        }
+        ElevationTile decompressed = new ElevationTile(current.decompress(), idxLatitude, idxLongitude, depth,
+                resolution);
+        decompressed.summary = summary;
+        return decompressed;
+    }
+
     /**
      * Will store exaggerated elevation map as image in file on given path.
      *
@@ -212,15 +590,11 @@ public class ElevationTile {
      * @throws IOException in case of store fail
      */
     public void storeDebugImage(File file, double scale, int precision) throws IOException {
-        ElevationTile tmp = new ElevationTile(idxLatitude, idxLongitude, depth, resolution);
-        double[][] originalData = this.getData();
-        double[][] scaledData = new double[resolution][resolution];
-        for (int y = 0; y < resolution; y++) {
-            for (int x = 0; x < resolution; x++) {
-                scaledData[x][y] = originalData[x][y] * scale;
-            }
+        double[] scaledData = this.getSamples().clone();
+        for (int i = 0; i < scaledData.length; i++) {
+            scaledData[i] *= scale;
         }
-        tmp.setData(scaledData);
+        ElevationTile tmp = new ElevationTile(scaledData, idxLatitude, idxLongitude, depth, resolution);
 
 //        Files.createParentDirs(file);
         String filepath = file.getAbsolutePath();
@@ -276,45 +650,353 @@ public class ElevationTile {
     }
 
     /**
-     * Will replace data in this tile by given array. Its dimensions must be
-     * 512x512. By setting <code>null</code> will be this tile turned into empty
-     * one.
+     * Will replace data in this tile by given array indexed [x][y]. Its
+     * dimensions must match resolution of the tile. Values are copied into
+     * row-major samples. By setting <code>null</code> will be this tile turned
+     * into empty one.
      */
     public void setData(double[][] data) {
-        assert (data.length == resolution && data[0].length == resolution);
-        this.data = data;
+        setSamples(data != null ? toSamples(data) : null);
+    }
+
+    /**
+     * Will replace samples in this tile by given array in row-major order,
+     * value at (x,y) is at index {@code y*resolution+x}. The array is used
+     * directly, not copied. By setting <code>null</code> will be this tile
+     * turned into empty one.
+     */
+    public void setSamples(double[] samples) {
+        assert (samples == null || samples.length == resolution * resolution);
+        this.data = samples;
+        this.buffer = null;
+        this.summary = null;
+    }
+
+    /**
+     * Will return samples of this tile in row-major order. Heap samples are
+     * returned directly, samples of tile backed by a buffer are copied out of
+     * it and the tile keeps working over the buffer. Narrow tile is widened
+     * to resolution samples per row.
+     *
+     * @return samples or <code>null</code> for empty tile
+     */
+    public double[] getSamples() {
+        SampleBuffer current = buffer;
+        if (data == null && current != null) {
+            int width = current.getWidth();
+            double[] samples = current.toSamples();
+            if (width == resolution) {
+                return samples;
+            }
+            double[] widened = new double[resolution * resolution];
+            for (int y = 0; y < resolution; y++) {
+                for (int x = 0; x < resolution; x++) {
+                    widened[y * resolution + x] = samples[y * width + getNarrowColumn(x, width)];
+                }
+            }
+            return widened;
+        }
+        return data;
+    }
+
+    /**
+     * @return samples of this tile in row-major order as stored, that is
+     * {@link #getWidth()} samples per row
+     */
+    private double[] getStoredSamples() {
+        SampleBuffer current = buffer;
+        if (data == null && current != null) {
+            return current.toSamples();
+        }
+        return data;
     }
 
     /**
-     * @return data contained within this tile
+     * Will return copy of data contained within this tile as array indexed [x][y].
+     * This is kept for callers working with two-dimensional arrays, use
+     * {@link #getSamples()} otherwise.
+     *
+     * @return data contained within this tile or <code>null</code> for empty tile
      */
     public double[][] getData() {
-        return this.data;
+        if (!hasData()) {
+            return null;
+        }
+        double[][] retVal = new double[resolution][resolution];
+        for (int y = 0; y < resolution; y++) {
+            for (int x = 0; x < resolution; x++) {
+                retVal[x][y] = getSample(x, y);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Will convert array indexed [x][y] into row-major samples.
+     *
+     * @param data square array
+     * @return new array of samples
+     */
+    public static double[] toSamples(double[][] data) {
+        int width = data.length;
+        int height = data[0].length;
+        double[] samples = new double[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                samples[y * width + x] = data[x][y];
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Will convert samples of this tile into 16 bit quantized form kept in
+     * memory, see {@link TileFormat.SampleType#INT16}. Tile occupies quarter
+     * of the memory afterwards and lookups dequantize the samples.
+     *
+     * @return maximum error introduced by the quantization in meters
+     */
+    public double quantize() {
+        if (!hasData()) {
+            throw new RuntimeException("Cannot quantize empty tile!"
+                    + " (" + idxLatitude + ", " + idxLongitude + ", " + depth + ")");
+        }
+        if (buffer != null && (buffer.getType() == TileFormat.SampleType.INT16 || buffer.isConstant())) {
+            return buffer.getErrorBound();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate((int) TileFormat.getRecordSize(resolution, TileFormat.SampleType.INT16));
+        writeRecord(record, TileFormat.SampleType.INT16);
+        try {
+            buffer = TileFormat.read(record, idxLatitude, idxLongitude, depth, resolution);
+        } catch (IOException e) {
+            throw new IllegalStateException("Quantized record is not valid!", e);
+        }
+        data = null;
+        return buffer.getErrorBound();
+    }
+
+    /**
+     * @return maximum error of elevations in this tile caused by the storage
+     * in meters, zero for full precision
+     */
+    public double getErrorBound() {
+        return buffer != null ? buffer.getErrorBound() : 0;
+    }
+
+    /**
+     * Will turn this tile into empty one in case it still reads from given
+     * buffer. This is used when memory of the buffer is about to be reused.
+     *
+     * @param released buffer which must not be read anymore
+     */
+    void release(SampleBuffer released) {
+        if (buffer == released) {
+            this.released = true;
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return bytes occupied by samples of this tile, zero for empty tile
+     */
+    public long getByteSize() {
+        if (buffer != null) {
+            return buffer.getByteSize();
+        }
+        return data != null ? 8L * data.length : 0;
+    }
+
+    /**
+     * @return buffer of samples of this tile or <code>null</code> if the
+     * samples are on heap
+     */
+    SampleBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return true if all samples of this tile are equal, see
+     * {@link SampleBuffer#isConstant()}
+     */
+    public boolean isConstant() {
+        SampleBuffer current = buffer;
+        return current != null && current.isConstant();
     }
 
     /**
-     * Will set data to this tile from given tile. These will be possibly sampled.
+     * @return true if this tile contains any data
+     */
+    public boolean hasData() {
+        return data != null || buffer != null;
+    }
+
+    /**
+     * Will set data to this tile from given tile. These will be possibly sampled,
+     * coarser tile is interpolated bilinearly and finer tile is averaged, see
+     * {@link #setData(ElevationTile, Resampling)}.
      *
      * @param that to be used as source of data
      */
     public void setData(ElevationTile that) {
-        //calculate scale of that in space of this
-        int thatSize = resolution;
-        if (this.depth > that.depth) {
-            thatSize <<= (this.depth - that.depth);
-        } else if (this.depth < that.depth) {
-            thatSize >>= (that.depth - this.depth);
+        setData(that, this.depth > that.depth ? Resampling.BILINEAR : Resampling.BOX);
+    }
+
+    /**
+     * Will set data to this tile from given tile of same resolution, resampled
+     * directly on the samples. Samples of this tile covered by that tile are
+     * overwritten, others are kept (or left without data in empty tile). Sample
+     * is taken as value at its position, same as lookups do, and samples
+     * without data are skipped by interpolation and averaging.
+     *
+     * @param that       to be used as source of data
+     * @param resampling method used when depths of the tiles differ
+     */
+    public void setData(ElevationTile that, Resampling resampling) {
+        assert (that.resolution == resolution);
+        double[] source = that.getSamples();
+        if (source == null) {
+            throw new RuntimeException("Cannot load elevation data from empty tile!");
+        }
+
+        //calculate size and position of that in samples of this
+        long thatSize = this.depth >= that.depth ? ((long) resolution) << (this.depth - that.depth)
+                : resolution >> (that.depth - this.depth);
+        if (thatSize == 0) {
+            return;
+        }
+        long thatPositionX = that.idxLongitude * thatSize - ((long) this.idxLongitude) * resolution;
+        long thatPositionY = resolution - thatSize - (that.idxLatitude * thatSize - ((long) this.idxLatitude) * resolution);
+        int fromX = (int) Math.max(0, thatPositionX);
+        int toX = (int) Math.min(resolution, thatPositionX + thatSize);
+        int fromY = (int) Math.max(0, thatPositionY);
+        int toY = (int) Math.min(resolution, thatPositionY + thatSize);
+        if (fromX >= toX || fromY >= toY) {
+            return;
+        }
+
+        //samples of that per sample of this, averaging needs more than one
+        double step = (double) resolution / thatSize;
+        if (resampling == Resampling.BOX && step <= 1) {
+            resampling = Resampling.NEAREST;
+        }
+
+        //source samples of every column and row
+        int[] columns = new int[toX - fromX];
+        int[] nextColumns = new int[columns.length];
+        double[] columnWeights = new double[columns.length];
+        resampleAxis(thatPositionX, step, fromX, resampling, columns, nextColumns, columnWeights);
+        int[] rows = new int[toY - fromY];
+        int[] nextRows = new int[rows.length];
+        double[] rowWeights = new double[rows.length];
+        resampleAxis(thatPositionY, step, fromY, resampling, rows, nextRows, rowWeights);
+
+        double[] samples = getSamples();
+        if (samples == null) {
+            samples = new double[resolution * resolution];
+            Arrays.fill(samples, Double.NaN);
         }
+        for (int y = fromY; y < toY; y++) {
+            int row = y * resolution;
+            int i = y - fromY;
+            for (int x = fromX; x < toX; x++) {
+                int j = x - fromX;
+                switch (resampling) {
+                    case NEAREST:
+                        samples[row + x] = source[rows[i] * resolution + columns[j]];
+                        break;
+                    case BILINEAR:
+                        samples[row + x] = interpolate(source, rows[i], nextRows[i], rowWeights[i],
+                                columns[j], nextColumns[j], columnWeights[j]);
+                        break;
+                    case BOX:
+                        samples[row + x] = average(source, rows[i], nextRows[i], columns[j], nextColumns[j]);
+                        break;
+                }
+            }
+        }
+        //tile will continue on heap
+        data = samples;
+        buffer = null;
+        summary = null;
+    }
 
-        //calculate position
-        int thatPositionX = that.idxLongitude * thatSize - this.idxLongitude * resolution;
-        int thatPositionY = resolution - thatSize - (that.idxLatitude * thatSize - this.idxLatitude * resolution);
+    /**
+     * Will calculate source samples for samples of this tile along one axis.
+     *
+     * @param position   of source tile in samples of this tile
+     * @param step       samples of source per sample of this tile
+     * @param from       first sample of this tile
+     * @param resampling method of the resampling
+     * @param first      nearest source sample, preceding source sample for
+     *                   bilinear and first sample of the box for box
+     * @param second     following source sample for bilinear and end of the
+     *                   box (exclusive) for box
+     * @param weights    weight of following source sample for bilinear
+     */
+    private void resampleAxis(long position, double step, int from, Resampling resampling,
+                              int[] first, int[] second, double[] weights) {
+        for (int i = 0; i < first.length; i++) {
+            double offset = from + i - position;
+            switch (resampling) {
+                case NEAREST:
+                    first[i] = clamp((long) Math.floor(offset * step + 0.5), resolution - 1);
+                    break;
+                case BILINEAR:
+                    long preceding = (long) Math.floor(offset * step);
+                    first[i] = clamp(preceding, resolution - 1);
+                    second[i] = clamp(preceding + 1, resolution - 1);
+                    weights[i] = offset * step - preceding;
+                    break;
+                case BOX:
+                    first[i] = clamp((long) Math.ceil((offset - 0.5) * step), resolution - 1);
+                    second[i] = Math.max(first[i] + 1, clamp((long) Math.ceil((offset + 0.5) * step), resolution));
+                    break;
+            }
+        }
+    }
 
-        //get image from that
-        BufferedImage thatImage = that.getDataAsImage(24);
+    private static int clamp(long index, int maximum) {
+        return (int) Math.max(0, Math.min(maximum, index));
+    }
 
-        //set data to this on that position from that image
-        this.setDataFromImage(thatImage, thatPositionX, thatPositionY, thatSize, thatSize, 24);
+    /**
+     * Will interpolate bilinearly between four samples, nearest one is used
+     * if any of them has no data.
+     */
+    private double interpolate(double[] source, int row, int nextRow, double rowWeight,
+                               int column, int nextColumn, double columnWeight) {
+        double northWest = source[row * resolution + column];
+        double northEast = source[row * resolution + nextColumn];
+        double southWest = source[nextRow * resolution + column];
+        double southEast = source[nextRow * resolution + nextColumn];
+        if (Double.isNaN(northWest) || Double.isNaN(northEast) || Double.isNaN(southWest) || Double.isNaN(southEast)) {
+            return source[(rowWeight < 0.5 ? row : nextRow) * resolution + (columnWeight < 0.5 ? column : nextColumn)];
+        }
+        double north = northWest + (northEast - northWest) * columnWeight;
+        double south = southWest + (southEast - southWest) * columnWeight;
+        return north + (south - north) * rowWeight;
+    }
+
+    /**
+     * Will average samples with data in given box.
+     *
+     * @return average or NaN if no sample in the box has data
+     */
+    private double average(double[] source, int fromRow, int toRow, int fromColumn, int toColumn) {
+        double sum = 0;
+        int count = 0;
+        for (int row = fromRow; row < toRow; row++) {
+            int offset = row * resolution;
+            for (int column = fromColumn; column < toColumn; column++) {
+                double sample = source[offset + column];
+                if (!Double.isNaN(sample)) {
+                    sum += sample;
+                    count++;
+                }
+            }
+        }
+        return count > 0 ? sum / count : Double.NaN;
     }
 
     /**
@@ -334,18 +1016,18 @@ public class ElevationTile {
         BufferedImage replacement = null;
         switch (precision) {
             case 8:
-                replacement = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+                replacement = new BufferedImage(resolution, resolution, BufferedImage.TYPE_BYTE_GRAY);
                 break;
             case 16:
-                replacement = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+                replacement = new BufferedImage(resolution, resolution, BufferedImage.TYPE_USHORT_GRAY);
                 break;
             case 24:
-                replacement = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                replacement = new BufferedImage(resolution, resolution, BufferedImage.TYPE_INT_RGB);
                 break;
         }
         Graphics2D g = replacement.createGraphics();
         //draw original data if available
-        if (data != null) {
+        if (hasData()) {
             g.drawImage(this.getDataAsImage(24), 0, 0, null);
         }
         //turn on anti-aliasing for added data - not, AA will mess up the data in 
@@ -356,24 +1038,29 @@ public class ElevationTile {
         g.dispose();
         image = replacement;
 
-        //convert image double array
+        //convert image to samples, whole image is overwritten
         Raster raster = image.getData();
-        data = data == null ? new double[width][height] : data;
-        for (y = 0; y < height; y++) {
-            for (x = 0; x < width; x++) {
+        double[] samples = data != null ? data : new double[resolution * resolution];
+        for (y = 0; y < resolution; y++) {
+            int row = y * resolution;
+            for (x = 0; x < resolution; x++) {
                 switch (precision) {
                     case 8:
-                        data[x][y] = (((image.getRGB(x, y) & 0xFF) / 255.0) * 10000.0) - 1000;
+                        samples[row + x] = (((image.getRGB(x, y) & 0xFF) / 255.0) * 10000.0) - 1000;
                         break;
                     case 16:
-                        data[x][y] = raster.getSample(x, y, 0) - 1000;
+                        samples[row + x] = raster.getSample(x, y, 0) - 1000;
                         break;
                     case 24:
-                        data[x][y] = ((((image.getRGB(x, y) & 0xFFFFFF) >> 4) / 100) - 1000);
+                        samples[row + x] = ((((image.getRGB(x, y) & 0xFFFFFF) >> 4) / 100) - 1000);
                         break;
                 }
             }
         }
+        //samples from buffer are already drawn, tile will continue on heap
+        data = samples;
+        buffer = null;
+        summary = null;
     }
 
     /**
@@ -386,7 +1073,7 @@ public class ElevationTile {
      */
     public BufferedImage getDataAsImage(int precision) {
         assert (precision == 16 || precision == 8 || precision == 24);
-        if (data == null) {
+        if (!hasData()) {
             throw new RuntimeException("Cannot load elevation data from empty tile!");
         }
 
@@ -406,18 +1093,19 @@ public class ElevationTile {
         WritableRaster wr = retVal.getRaster();
 
         //will write down in the image all pixels depending on the precision
-        for (int y = 0; y < 512; y++) {
-            for (int x = 0; x < 512; x++) {
+        for (int y = 0; y < resolution; y++) {
+            for (int x = 0; x < resolution; x++) {
+                double sample = getSample(x, y);
                 switch (precision) {
                     case 8:
-                        int div = (int) Math.abs(((data[x][y] + 1000) / 10000.0) * 255.0);
+                        int div = (int) Math.abs(((sample + 1000) / 10000.0) * 255.0);
                         retVal.setRGB(x, y, new Color(div, div, div).getRGB());
                         break;
                     case 16:
-                        wr.setSample(x, y, 0, (int) Math.round(data[x][y] + 1000));
+                        wr.setSample(x, y, 0, (int) Math.round(sample + 1000));
                         break;
                     case 24:
-                        int value = (int) Math.round((data[x][y] + 1000) * 100) << 4;
+                        int value = (int) Math.round((sample + 1000) * 100) << 4;
                         retVal.setRGB(x, y, value);
                         break;
                 }
@@ -452,7 +1140,27 @@ public class ElevationTile {
         String out = "ElevationTile ";
         out += "(" + idxLatitude + "," + idxLongitude + ") ";
         out += "depth " + depth + " ";
-        out += (data != null ? "is not empty" : "is empty");
+        out += (hasData() ? "is not empty" : "is empty");
         return out;
     }
+
+    /**
+     * Method of resampling samples between tiles of different depth.
+     */
+    public enum Resampling {
+        /**
+         * Value of nearest source sample
+         */
+        NEAREST,
+        /**
+         * Bilinear interpolation of four surrounding source samples, used for
+         * upsampling
+         */
+        BILINEAR,
+        /**
+         * Average of source samples covered by the target sample, used for
+         * downsampling, behaves as {@link #NEAREST} for upsampling
+         */
+        BOX
+    }
 }
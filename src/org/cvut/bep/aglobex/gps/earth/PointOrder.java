@@ -0,0 +1,134 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+/**
+ * This class orders points along space-filling curves, so points close to each
+ * other on the map are processed close to each other in time. Curves are laid
+ * over grid of {@link #GRID_BITS} bits per axis in which both coordinates have
+ * same cell size, latitude uses lower half of the grid. Every aligned square
+ * of the grid is visited by both curves in one piece, therefore points of any
+ * quad tree tile of {@link ElevationMap} form continuous run in the order.
+ */
+public final class PointOrder {
+    /**
+     * Bits of grid coordinate, cell is 360 / 2^31 degrees (less than 2 cm).
+     */
+    private final static int GRID_BITS = 31;
+
+    private PointOrder() {
+    }
+
+    /**
+     * Will calculate position of given point along Z-order (Morton) curve.
+     * Position of point agrees with {@link TileKey} of tiles containing it.
+     *
+     * @param latitude  of the point in degrees
+     * @param longitude of the point in degrees
+     * @return position along the curve
+     */
+    public static long getZOrder(double latitude, double longitude) {
+        return TileKey.interleave(getCell(latitude, 90), getCell(longitude, 180));
+    }
+
+    /**
+     * Will calculate position of given point along Hilbert curve. Unlike
+     * Z-order, consecutive positions are always neighbouring cells.
+     *
+     * @param latitude  of the point in degrees
+     * @param longitude of the point in degrees
+     * @return position along the curve
+     */
+    public static long getHilbertOrder(double latitude, double longitude) {
+        long x = getCell(longitude, 180);
+        long y = getCell(latitude, 90);
+        long maximum = (1L << GRID_BITS) - 1;
+        long position = 0;
+        for (long size = 1L << (GRID_BITS - 1); size > 0; size >>= 1) {
+            int rx = (x & size) != 0 ? 1 : 0;
+            int ry = (y & size) != 0 ? 1 : 0;
+            position += size * size * ((3 * rx) ^ ry);
+            //rotate the quadrant, so the curve continues in it
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = maximum - x;
+                    y = maximum - y;
+                }
+                long swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return cell of the grid containing given coordinate
+     */
+    private static long getCell(double degrees, double maximum) {
+        long cell = (long) Math.floor((degrees + maximum) / 360 * (1L << GRID_BITS));
+        return Math.max(0, Math.min((long) (2 * maximum / 360 * (1L << GRID_BITS)) - 1, cell));
+    }
+
+    /**
+     * Will order given points along Z-order curve.
+     *
+     * @param latitudes  of the points in degrees
+     * @param longitudes of the points in degrees
+     * @return indices of the points in order of the curve
+     */
+    public static int[] sortByZOrder(double[] latitudes, double[] longitudes) {
+        long[] positions = new long[latitudes.length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = getZOrder(latitudes[i], longitudes[i]);
+        }
+        return sort(positions);
+    }
+
+    /**
+     * Will order given points along Hilbert curve.
+     *
+     * @param latitudes  of the points in degrees
+     * @param longitudes of the points in degrees
+     * @return indices of the points in order of the curve
+     */
+    public static int[] sortByHilbertOrder(double[] latitudes, double[] longitudes) {
+        long[] positions = new long[latitudes.length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = getHilbertOrder(latitudes[i], longitudes[i]);
+        }
+        return sort(positions);
+    }
+
+    /**
+     * Will sort indices by given positions. Sort is stable bottom-up merge
+     * sort, so points of same position keep their order.
+     *
+     * @param positions along a curve
+     * @return indices ordered by the positions
+     */
+    private static int[] sort(long[] positions) {
+        int[] order = new int[positions.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int[] merged = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int from = 0; from < order.length; from += 2 * width) {
+                int middle = Math.min(from + width, order.length);
+                int to = Math.min(from + 2 * width, order.length);
+                int left = from;
+                int right = middle;
+                for (int i = from; i < to; i++) {
+                    if (left < middle && (right >= to || positions[order[left]] <= positions[order[right]])) {
+                        merged[i] = order[left++];
+                    } else {
+                        merged[i] = order[right++];
+                    }
+                }
+            }
+            int[] swap = order;
+            order = merged;
+            merged = swap;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,527 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This class provides random access to elevation samples stored in a byte
+ * buffer in {@link TileFormat} body layout, either contiguous or blocked. The
+ * buffer is typically memory mapped, so samples are read directly from the page
+ * cache and only pages of touched blocks are loaded. Constant samples of
+ * uniform tiles are not backed by any buffer, see
+ * {@link #constant(double, TileFormat.SampleType, int, int)}. Blocked samples
+ * may be compressed in memory, see {@link #compress()}.
+ */
+public final class SampleBuffer {
+    /**
+     * Buffer where position zero corresponds to the first sample,
+     * <code>null</code> for constant and compressed samples
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Value of all samples of constant buffer
+     */
+    private final double value;
+
+    /**
+     * Type of samples in the buffer
+     */
+    private final TileFormat.SampleType type;
+
+    /**
+     * Samples per row
+     */
+    private final int width;
+
+    /**
+     * Number of rows
+     */
+    private final int height;
+
+    /**
+     * Scale of quantized samples
+     */
+    private final double scale;
+
+    /**
+     * Offset of quantized samples
+     */
+    private final double offset;
+
+    /**
+     * Maximum error of samples in meters caused by quantization
+     */
+    private final double errorBound;
+
+    /**
+     * Size of blocks of blocked body, zero for contiguous body
+     */
+    private final int blockSize;
+
+    /**
+     * Byte offsets of blocks from the beginning of the buffer in row-major
+     * order, -1 for absent blocks. <code>null</code> for contiguous body.
+     */
+    private final int[] blockOffsets;
+
+    /**
+     * Compressed blocks in row-major order, <code>null</code> for absent
+     * ones. <code>null</code> unless the samples are compressed.
+     */
+    private final byte[][] packedBlocks;
+
+    /**
+     * Rows of single compressed block of samples compressed in strips of
+     * whole rows, zero for square blocks of {@link #blockSize}
+     */
+    private final int stripRows;
+
+    /**
+     * Last decompressed block of compressed samples
+     */
+    private volatile DecodedBlock decodedBlock = null;
+
+    /**
+     * Summary stored along with the samples or <code>null</code>
+     */
+    private TileSummary summary = null;
+
+    /**
+     * Will wrap given buffer containing floating point samples.
+     *
+     * @param buffer with first sample at position zero
+     * @param type   of samples
+     * @param width  samples per row
+     * @param height number of rows
+     */
+    public SampleBuffer(ByteBuffer buffer, TileFormat.SampleType type, int width, int height) {
+        this(buffer, type, width, height, 0, 0, 0);
+    }
+
+    /**
+     * Will wrap given buffer containing samples, possibly quantized.
+     *
+     * @param buffer     with first sample at position zero
+     * @param type       of samples
+     * @param width      samples per row
+     * @param height     number of rows
+     * @param scale      of quantized samples
+     * @param offset     of quantized samples
+     * @param errorBound of quantized samples in meters
+     */
+    public SampleBuffer(ByteBuffer buffer, TileFormat.SampleType type, int width, int height,
+                        double scale, double offset, double errorBound) {
+        this(buffer, type, width, height, scale, offset, errorBound, 0, null);
+    }
+
+    /**
+     * Will wrap given buffer containing samples, possibly quantized and split
+     * into blocks.
+     *
+     * @param buffer       with the body at position zero
+     * @param type         of samples
+     * @param width        samples per row
+     * @param height       number of rows
+     * @param scale        of quantized samples
+     * @param offset       of quantized samples
+     * @param errorBound   of quantized samples in meters
+     * @param blockSize    size of blocks, zero for contiguous body
+     * @param blockOffsets byte offsets of blocks in row-major order, -1 for
+     *                     absent ones, <code>null</code> for contiguous body
+     */
+    public SampleBuffer(ByteBuffer buffer, TileFormat.SampleType type, int width, int height,
+                        double scale, double offset, double errorBound, int blockSize, int[] blockOffsets) {
+        assert (type != TileFormat.SampleType.INT16 || scale > 0);
+        assert ((blockSize == 0) == (blockOffsets == null));
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.value = Double.NaN;
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.offset = offset;
+        this.errorBound = errorBound;
+        this.blockSize = blockSize;
+        this.blockOffsets = blockOffsets;
+        this.packedBlocks = null;
+        this.stripRows = 0;
+    }
+
+    private SampleBuffer(SampleBuffer source, int blockSize, int stripRows, byte[][] packedBlocks) {
+        this.buffer = null;
+        this.value = Double.NaN;
+        this.type = source.type;
+        this.width = source.width;
+        this.height = source.height;
+        this.scale = source.scale;
+        this.offset = source.offset;
+        this.errorBound = source.errorBound;
+        this.blockSize = blockSize;
+        this.blockOffsets = null;
+        this.packedBlocks = packedBlocks;
+        this.stripRows = stripRows;
+    }
+
+    private SampleBuffer(double value, TileFormat.SampleType type, int width, int height) {
+        this.buffer = null;
+        this.value = value;
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        this.scale = 0;
+        this.offset = 0;
+        this.errorBound = 0;
+        this.blockSize = 0;
+        this.blockOffsets = null;
+        this.packedBlocks = null;
+        this.stripRows = 0;
+    }
+
+    /**
+     * Will create buffer of samples all equal to given value, e.g. sea level
+     * or no data.
+     *
+     * @param value  of all samples in meters, NaN for no data
+     * @param type   of samples the tile was written with
+     * @param width  samples per row
+     * @param height number of rows
+     * @return constant buffer
+     */
+    public static SampleBuffer constant(double value, TileFormat.SampleType type, int width, int height) {
+        return new SampleBuffer(value, type, width, height);
+    }
+
+    /**
+     * Will read sample at given position.
+     *
+     * @param x column, from west to east
+     * @param y row, from north to south
+     * @return elevation in meters or NaN if there is no data
+     */
+    public double get(int x, int y) {
+        if (buffer == null) {
+            return packedBlocks != null ? getPacked(x, y) : value;
+        }
+        int base = 0;
+        int index;
+        if (blockOffsets == null) {
+            index = y * width + x;
+        } else {
+            base = blockOffsets[(y / blockSize) * (width / blockSize) + x / blockSize];
+            if (base < 0) {
+                return Double.NaN;
+            }
+            index = (y % blockSize) * blockSize + x % blockSize;
+        }
+        return read(buffer, base, index);
+    }
+
+    /**
+     * Will read sample at given position of compressed samples, the block
+     * containing it is decompressed unless it was the last one decompressed.
+     */
+    private double getPacked(int x, int y) {
+        int block = stripRows > 0 ? y / stripRows : (y / blockSize) * (width / blockSize) + x / blockSize;
+        if (packedBlocks[block] == null) {
+            return Double.NaN;
+        }
+        DecodedBlock decoded = decodedBlock;
+        if (decoded == null || decoded.block != block) {
+            decoded = new DecodedBlock(block, decompress(block));
+            decodedBlock = decoded;
+        }
+        return read(decoded.samples, 0, stripRows > 0 ? (y % stripRows) * width + x
+                : (y % blockSize) * blockSize + x % blockSize);
+    }
+
+    /**
+     * @return samples of given present block of compressed samples
+     */
+    private ByteBuffer decompress(int block) {
+        int count = stripRows > 0 ? stripRows * width : blockSize * blockSize;
+        return BlockCompressor.decompress(packedBlocks[block], count, type.size);
+    }
+
+    /**
+     * Will read single sample of given type.
+     *
+     * @param source buffer with the samples
+     * @param base   byte offset of the first sample
+     * @param index  of the sample from the first one
+     * @return elevation in meters or NaN if there is no data
+     */
+    private double read(ByteBuffer source, int base, int index) {
+        switch (type) {
+            case FLOAT64:
+                return source.getDouble(base + (index << 3));
+            case FLOAT32:
+                return source.getFloat(base + (index << 2));
+            case INT16:
+                short sample = source.getShort(base + (index << 1));
+                return sample == TileFormat.INT16_NO_DATA ? Double.NaN : offset + scale * sample;
+            default:
+                throw new IllegalStateException("Unsupported sample type " + type);
+        }
+    }
+
+    /**
+     * Will compress samples of this buffer in memory block by block. Blocks
+     * of blocked buffer are kept, contiguous samples are split into blocks of
+     * {@link TileFormat#DEFAULT_BLOCK_SIZE} if possible. Other contiguous
+     * samples (e.g. narrow tiles) are split into strips of whole rows holding
+     * about as many samples, so blocks are never too small to deflate well.
+     * Lookups in compressed buffer decompress single block, so compressed
+     * tile is cheap to keep while its lookups are not too frequent.
+     *
+     * @return new compressed buffer of same samples, summary included
+     */
+    SampleBuffer compress() {
+        if (buffer == null) {
+            throw new IllegalStateException("Only samples in buffer can be compressed!");
+        }
+        if (blockOffsets == null && (width % TileFormat.DEFAULT_BLOCK_SIZE != 0
+                || height % TileFormat.DEFAULT_BLOCK_SIZE != 0)) {
+            return compressStrips();
+        }
+        int size = blockOffsets == null ? TileFormat.DEFAULT_BLOCK_SIZE : blockSize;
+        int blocksPerRow = width / size;
+        byte[][] packed = new byte[blocksPerRow * (height / size)][];
+        for (int block = 0; block < packed.length; block++) {
+            ByteBuffer samples;
+            if (blockOffsets != null) {
+                if (blockOffsets[block] < 0) {
+                    continue;
+                }
+                samples = buffer.duplicate();
+                samples.position(blockOffsets[block]).limit(blockOffsets[block] + size * size * type.size);
+            } else {
+                //gather rows of the block
+                samples = ByteBuffer.allocate(size * size * type.size);
+                int x0 = (block % blocksPerRow) * size;
+                int y0 = (block / blocksPerRow) * size;
+                for (int y = 0; y < size; y++) {
+                    ByteBuffer row = buffer.duplicate();
+                    int start = ((y0 + y) * width + x0) * type.size;
+                    row.position(start).limit(start + size * type.size);
+                    samples.put(row);
+                }
+                samples.flip();
+            }
+            packed[block] = BlockCompressor.compress(samples, type.size);
+        }
+        SampleBuffer compressed = new SampleBuffer(this, size, 0, packed);
+        compressed.summary = summary != null ? summary.copy() : null;
+        return compressed;
+    }
+
+    /**
+     * Will compress contiguous samples in strips of whole rows, see
+     * {@link #compress()}.
+     *
+     * @return new compressed buffer of same samples, summary included
+     */
+    private SampleBuffer compressStrips() {
+        int rows = Math.max(1, Math.min(height,
+                TileFormat.DEFAULT_BLOCK_SIZE * TileFormat.DEFAULT_BLOCK_SIZE / width));
+        while (height % rows != 0) {
+            rows--;
+        }
+        int stripBytes = rows * width * type.size;
+        byte[][] packed = new byte[height / rows][];
+        for (int strip = 0; strip < packed.length; strip++) {
+            ByteBuffer samples = buffer.duplicate();
+            samples.position(strip * stripBytes).limit((strip + 1) * stripBytes);
+            packed[strip] = BlockCompressor.compress(samples, type.size);
+        }
+        SampleBuffer compressed = new SampleBuffer(this, 0, rows, packed);
+        compressed.summary = summary != null ? summary.copy() : null;
+        return compressed;
+    }
+
+    /**
+     * Will decompress all blocks of compressed buffer to heap.
+     *
+     * @return new blocked buffer of same samples, summary included
+     */
+    SampleBuffer decompress() {
+        if (packedBlocks == null) {
+            throw new IllegalStateException("Samples are not compressed!");
+        }
+        if (stripRows > 0) {
+            //strips of whole rows make contiguous body
+            ByteBuffer samples = ByteBuffer.allocate(width * height * type.size);
+            for (int strip = 0; strip < packedBlocks.length; strip++) {
+                samples.put(decompress(strip));
+            }
+            samples.flip();
+            SampleBuffer decompressed = new SampleBuffer(samples, type, width, height, scale, offset, errorBound);
+            decompressed.summary = summary;
+            return decompressed;
+        }
+        int blockBytes = blockSize * blockSize * type.size;
+        int[] offsets = new int[packedBlocks.length];
+        int present = 0;
+        for (int block = 0; block < packedBlocks.length; block++) {
+            offsets[block] = packedBlocks[block] != null ? blockBytes * present++ : -1;
+        }
+        ByteBuffer samples = ByteBuffer.allocate(blockBytes * present);
+        for (int block = 0; block < packedBlocks.length; block++) {
+            if (packedBlocks[block] != null) {
+                samples.put(decompress(block));
+            }
+        }
+        samples.flip();
+        SampleBuffer decompressed = new SampleBuffer(samples, type, width, height, scale, offset, errorBound,
+                blockSize, offsets);
+        decompressed.summary = summary;
+        return decompressed;
+    }
+
+    /**
+     * Will copy all samples into new array in row-major order.
+     *
+     * @return copy of the samples
+     */
+    public double[] toSamples() {
+        double[] samples = new double[width * height];
+        if (packedBlocks != null && stripRows > 0) {
+            for (int strip = 0; strip < packedBlocks.length; strip++) {
+                ByteBuffer decoded = decompress(strip);
+                for (int i = 0; i < stripRows * width; i++) {
+                    samples[strip * stripRows * width + i] = read(decoded, 0, i);
+                }
+            }
+            return samples;
+        }
+        if (packedBlocks != null) {
+            //block by block, so every block is decompressed once
+            int blocksPerRow = width / blockSize;
+            for (int block = 0; block < packedBlocks.length; block++) {
+                ByteBuffer decoded = packedBlocks[block] != null ? decompress(block) : null;
+                int x0 = (block % blocksPerRow) * blockSize;
+                int y0 = (block / blocksPerRow) * blockSize;
+                for (int y = 0; y < blockSize; y++) {
+                    for (int x = 0; x < blockSize; x++) {
+                        samples[(y0 + y) * width + x0 + x] = decoded != null
+                                ? read(decoded, 0, y * blockSize + x) : Double.NaN;
+                    }
+                }
+            }
+            return samples;
+        }
+        if (buffer == null) {
+            Arrays.fill(samples, value);
+            return samples;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                samples[y * width + x] = get(x, y);
+            }
+        }
+        return samples;
+    }
+
+    public TileFormat.SampleType getType() {
+        return type;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return maximum error of samples in meters, zero for floating point samples
+     */
+    public double getErrorBound() {
+        return errorBound;
+    }
+
+    /**
+     * @return summary stored along with the samples or <code>null</code> if there is none
+     */
+    public TileSummary getSummary() {
+        return summary;
+    }
+
+    /**
+     * @param summary stored along with the samples
+     */
+    void setSummary(TileSummary summary) {
+        this.summary = summary;
+    }
+
+    /**
+     * @return size of blocks, zero for contiguous body
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return true if all samples are equal and not backed by any buffer
+     */
+    public boolean isConstant() {
+        return buffer == null && packedBlocks == null;
+    }
+
+    /**
+     * @return true if the samples are compressed in memory, see {@link #compress()}
+     */
+    public boolean isCompressed() {
+        return packedBlocks != null;
+    }
+
+    /**
+     * @return value of all samples of constant buffer, see {@link #isConstant()}
+     */
+    public double getConstantValue() {
+        return value;
+    }
+
+    /**
+     * @return bytes occupied by the samples, absent blocks excluded, header
+     * size of {@link TileFormat} for constant buffer, compressed size for
+     * compressed buffer
+     */
+    public long getByteSize() {
+        if (packedBlocks != null) {
+            long bytes = 0;
+            for (byte[] packed : packedBlocks) {
+                bytes += packed != null ? packed.length : 0;
+            }
+            return bytes;
+        }
+        if (buffer == null) {
+            return TileFormat.HEADER_SIZE;
+        }
+        if (blockOffsets == null) {
+            return (long) width * height * type.size;
+        }
+        long bytes = 0;
+        for (int blockOffset : blockOffsets) {
+            if (blockOffset >= 0) {
+                bytes += (long) blockSize * blockSize * type.size;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Decompressed block of compressed samples.
+     */
+    private static class DecodedBlock {
+        private final int block;
+        private final ByteBuffer samples;
+
+        private DecodedBlock(int block, ByteBuffer samples) {
+            this.block = block;
+            this.samples = samples;
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import aglobe.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches decoded tiles in a memory-mapped file shared by all
+ * processes of the host, e.g. a file in <code>/dev/shm</code>. Tile loaded by
+ * one process is stored as {@link TileFormat} record in a slot of the segment
+ * and other processes read it in place instead of loading and decoding it
+ * again, so the tile occupies memory once for all of them.<br><br>
+ * Slot directory in the segment is looked up without locks. Every slot entry
+ * carries a sequence number which is odd while the slot is written, reader
+ * finds matching entry, pins the slot by shared lock of its byte range and
+ * checks the sequence did not change meanwhile. Pinned slot is never
+ * recycled, writer overwrites only least recently used slot it can lock
+ * exclusively. Writers of all processes are serialized by lock of the header.
+ * Java offers no atomic operations on mapped memory, so byte range locks of
+ * the file take their place and correctness never depends on ordering of
+ * plain writes to the segment.<br><br>
+ * Process keeps slot pinned while the tile is cached by any of its maps.
+ * Released tile becomes empty and its pin is dropped once no reader of this
+ * process is inside, see {@link TileReaders}. Segment is bound to single
+ * repository, resolution and sample type, and stays mapped until the process
+ * exits. Cache is thread-safe, one instance is shared by all maps of the
+ * process using the same file.<br><br>
+ * <h5>Layout (little-endian):</h5>
+ * <pre>
+ * offset  type    content
+ *      0  int     magic number {@link #MAGIC}
+ *      4  short   format version
+ *      6  short   id of sample type of the records
+ *      8  int     resolution of the tiles
+ *     12  int     size of single slot
+ *     16  int     count of slots
+ *     20  int     hash of path of the repository
+ *     24  byte[]  reserved up to {@link #HEADER_SIZE}
+ *     64  entry[] int sequence, int state (0 free, 1 used), long key of tile,
+ *                 see {@link TileKey}, long version of tile, long last access
+ *                 in milliseconds since the epoch
+ *      ?  slot[]  {@link TileFormat} records
+ * </pre>
+ */
+public class SharedTileCache implements TileReaders {
+    /**
+     * Magic number at the beginning of the segment ("ELVC" in file).
+     */
+    public final static int MAGIC = 0x43564C45;
+
+    /**
+     * Current version of the segment layout.
+     */
+    public final static short VERSION = 1;
+
+    /**
+     * Bytes of the header, the header is locked by writers.
+     */
+    private final static int HEADER_SIZE = 64;
+
+    private final static int ENTRY_SIZE = 32;
+
+    private final static int STATE_FREE = 0;
+
+    private final static int STATE_USED = 1;
+
+    /**
+     * Caches opened by this process by canonical files of their segments
+     */
+    private final static Map<File, SharedTileCache> OPENED = new HashMap<File, SharedTileCache>();
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer segment;
+    private final int resolution;
+    private final TileFormat.SampleType type;
+    private final int repositoryHash;
+    private final int slotSize;
+    private final int slotCount;
+
+    /**
+     * Offset of the first slot in the segment
+     */
+    private final int slotsOffset;
+
+    /**
+     * Slots pinned by this process by keys of their tiles. Guarded by this
+     * cache.
+     */
+    private final Map<Long, Attachment> attachments = new HashMap<Long, Attachment>();
+
+    /**
+     * Released slots waiting for readers to leave. Guarded by this cache.
+     */
+    private final List<Attachment> pending = new ArrayList<Attachment>();
+
+    /**
+     * Count of threads reading from slots
+     */
+    private final AtomicInteger readers = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder recycles = new LongAdder();
+
+    /**
+     * Will open segment in given file or create it if the file is empty or
+     * its creation was not finished. Segment is created under lock of its header, so processes started
+     * at once agree on single layout.
+     */
+    private SharedTileCache(File file, long capacity, int resolution, TileFormat.SampleType type,
+                            int repositoryHash) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            boolean valid = raf.length() >= HEADER_SIZE && channel.read(header, 0) == HEADER_SIZE;
+            if (valid && header.getInt(0) != MAGIC && header.getInt(0) != 0) {
+                //other file (e.g. cache snapshot) is never overwritten
+                throw new IOException("File '" + file + "' is not a shared tile cache!");
+            }
+            if (!valid || header.getInt(0) != MAGIC) {
+                //slots are aligned to samples of any type
+                long recordSize = (TileFormat.getRecordSize(resolution, type) + 7) & ~7L;
+                long slots = Math.min(capacity, Integer.MAX_VALUE - HEADER_SIZE) / (recordSize + ENTRY_SIZE);
+                if (slots < 1) {
+                    throw new IllegalArgumentException("Capacity " + capacity + " cannot hold tile of "
+                            + recordSize + " bytes!");
+                }
+                header.clear();
+                header.putInt(MAGIC);
+                header.putShort(VERSION);
+                header.putShort(type.id);
+                header.putInt(resolution);
+                header.putInt((int) recordSize);
+                header.putInt((int) slots);
+                header.putInt(repositoryHash);
+                header.clear();
+                //fresh directory of zeros lists only free slots
+                channel.truncate(0);
+                raf.setLength(HEADER_SIZE + slots * (ENTRY_SIZE + recordSize));
+                channel.write(header, 0);
+            } else if (header.getShort(4) != VERSION) {
+                throw new IOException("Unsupported version of shared tile cache '" + file + "'!");
+            }
+            this.resolution = header.getInt(8);
+            this.type = TileFormat.SampleType.fromId((byte) header.getShort(6));
+            this.slotSize = header.getInt(12);
+            this.slotCount = header.getInt(16);
+            this.repositoryHash = header.getInt(20);
+            this.slotsOffset = HEADER_SIZE + slotCount * ENTRY_SIZE;
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, slotsOffset + (long) slotCount * slotSize);
+            this.segment.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        } finally {
+            if (channel.isOpen()) {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Will open shared cache in given file, creating the segment if it does
+     * not exist. Capacity is used only when the segment is created, it is
+     * limited to 2 GB by single mapping.
+     *
+     * @param file       of the segment
+     * @param capacity   in bytes of new segment
+     * @param resolution of cached tiles
+     * @param type       of samples in slots
+     * @param repository path of the repository the tiles come from
+     * @return cache of the segment, same instance for all callers of this
+     * process
+     * @throws IOException in case the segment cannot be mapped or it was
+     *                     created for another repository, resolution or sample type
+     */
+    static synchronized SharedTileCache open(File file, long capacity, int resolution,
+                                             TileFormat.SampleType type, String repository) throws IOException {
+        File canonical = file.getCanonicalFile();
+        int repositoryHash = new File(repository).getCanonicalPath().hashCode();
+        SharedTileCache cache = OPENED.get(canonical);
+        if (cache == null) {
+            cache = new SharedTileCache(canonical, capacity, resolution, type, repositoryHash);
+            OPENED.put(canonical, cache);
+        }
+        if (cache.resolution != resolution || cache.type != type || cache.repositoryHash != repositoryHash) {
+            throw new IOException("Shared tile cache '" + file + "' holds tiles of resolution " + cache.resolution
+                    + " in " + cache.type + " of another repository or type!");
+        }
+        return cache;
+    }
+
+    @Override
+    public void enter() {
+        readers.incrementAndGet();
+    }
+
+    @Override
+    public void exit() {
+        readers.decrementAndGet();
+    }
+
+    /**
+     * Will look up tile in the segment and pin its slot. Every tile obtained
+     * has to be released by {@link #release(long, ElevationTile)} once it is
+     * no longer cached.
+     *
+     * @param key     of the tile
+     * @param version of the tile, e.g. generation of versioned tile
+     * @return tile reading from the segment or <code>null</code>
+     */
+    ElevationTile get(long key, long version) {
+        synchronized (this) {
+            ElevationTile tile = reattach(key, version);
+            if (tile != null) {
+                hits.increment();
+                return tile;
+            }
+        }
+        //directory is scanned without locks, slot is validated when pinned
+        int slot = find(key, version);
+        ElevationTile tile = null;
+        if (slot >= 0) {
+            synchronized (this) {
+                tile = reattach(key, version);
+                if (tile == null) {
+                    tile = attach(slot, segment.getInt(getEntryOffset(slot)), key, version);
+                }
+            }
+        }
+        if (tile != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return tile;
+    }
+
+    /**
+     * Will copy given tile into least recently used free slot of the segment
+     * and pin it. Tile stored by another process meanwhile is used instead.
+     *
+     * @param key     of the tile
+     * @param version of the tile, e.g. generation of versioned tile
+     * @param tile    with data
+     * @return tile reading from the segment or <code>null</code> if all slots
+     * are pinned or this process still pins another version of the tile
+     */
+    synchronized ElevationTile put(long key, long version, ElevationTile tile) {
+        ElevationTile stored = reattach(key, version);
+        if (stored != null) {
+            return stored;
+        }
+        if (attachments.containsKey(key)) {
+            //older version is pinned until released, so no slot is taken for
+            //a tile which could not be attached anyway
+            return null;
+        }
+        FileLock directory = null;
+        try {
+            directory = channel.lock(0, HEADER_SIZE, false);
+            int slot = find(key, version);
+            if (slot >= 0) {
+                return attach(slot, segment.getInt(getEntryOffset(slot)), key, version);
+            }
+
+            //least recently used slot nobody pins is overwritten
+            FileLock exclusive = null;
+            for (int candidate : getSlotsByAccess()) {
+                exclusive = tryLock(candidate, false);
+                if (exclusive != null) {
+                    slot = candidate;
+                    break;
+                }
+            }
+            if (exclusive == null) {
+                return null;
+            }
+            int entry = getEntryOffset(slot);
+            int sequence = segment.getInt(entry) | 1;
+            if (segment.getInt(entry + 4) == STATE_USED) {
+                recycles.increment();
+            }
+            segment.putInt(entry, sequence);
+            segment.putInt(entry + 4, STATE_FREE);
+            tile.writeRecord(getSlot(slot), type);
+            segment.putLong(entry + 8, key);
+            segment.putLong(entry + 16, version);
+            segment.putLong(entry + 24, System.currentTimeMillis());
+            segment.putInt(entry + 4, STATE_USED);
+            segment.putInt(entry, sequence + 1);
+            exclusive.release();
+            stores.increment();
+            return attach(slot, sequence + 1, key, version);
+        } catch (IOException e) {
+            Logger.logWarning("Failed to store tile in shared tile cache '" + file + "'!", e);
+            return null;
+        } finally {
+            if (directory != null) {
+                try {
+                    directory.release();
+                } catch (IOException e) {
+                    Logger.logWarning("Failed to unlock shared tile cache '" + file + "'!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Will release tile obtained from this cache. Slot stays pinned until the
+     * tile is released as many times as it was obtained, then the tile
+     * becomes empty.
+     *
+     * @param key  of the tile
+     * @param tile obtained from this cache, other tiles are ignored
+     */
+    synchronized void release(long key, ElevationTile tile) {
+        Attachment attachment = attachments.get(key);
+        if (attachment == null || attachment.tile != tile || --attachment.count > 0) {
+            return;
+        }
+        attachments.remove(key);
+        attachment.tile.release(attachment.buffer);
+        pending.add(attachment);
+        unpin();
+    }
+
+    /**
+     * Will return pinned tile of given key or revive released one still
+     * pinned. Caller has to hold lock of this cache.
+     *
+     * @return tile or <code>null</code> if the tile is not pinned
+     */
+    private ElevationTile reattach(long key, long version) {
+        unpin();
+        Attachment attachment = attachments.get(key);
+        if (attachment != null && attachment.version == version) {
+            attachment.count++;
+            touch(attachment.slot);
+            return attachment.tile;
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            Attachment released = pending.get(i);
+            if (released.key == key && released.version == version && attachment == null) {
+                pending.remove(i);
+                attachment = new Attachment(released.key, released.version, released.slot, released.lock,
+                        released.buffer, newTile(released.key, released.buffer));
+                attachments.put(key, attachment);
+                touch(attachment.slot);
+                return attachment.tile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Will pin given slot and check it still holds given tile. Caller has to
+     * hold lock of this cache.
+     *
+     * @param slot     found in the directory
+     * @param sequence of the slot when it was found
+     * @return tile reading from the slot or <code>null</code> if the slot
+     * changed or is being written
+     */
+    private ElevationTile attach(int slot, int sequence, long key, long version) {
+        if ((sequence & 1) != 0 || attachments.containsKey(key)) {
+            return null;
+        }
+        FileLock lock = tryLock(slot, true);
+        if (lock == null) {
+            return null;
+        }
+        //slot cannot be recycled now, it is checked it was not meanwhile
+        int entry = getEntryOffset(slot);
+        SampleBuffer buffer = null;
+        if (segment.getInt(entry) == sequence && matches(slot, key, version)) {
+            try {
+                buffer = TileFormat.read(getSlot(slot), TileKey.getLatitudeIndex(key),
+                        TileKey.getLongitudeIndex(key), TileKey.getDepth(key), resolution);
+            } catch (IOException e) {
+                Logger.logWarning("Invalid tile record in shared tile cache '" + file + "'!", e);
+            }
+        }
+        if (buffer == null) {
+            releaseLock(lock);
+            return null;
+        }
+        Attachment attachment = new Attachment(key, version, slot, lock, buffer, newTile(key, buffer));
+        attachments.put(key, attachment);
+        touch(slot);
+        return attachment.tile;
+    }
+
+    /**
+     * Will drop pins of released slots if nobody reads. Reader entering
+     * afterwards sees its tile detached already. Caller has to hold lock of
+     * this cache.
+     */
+    private void unpin() {
+        if (pending.isEmpty() || readers.get() != 0) {
+            return;
+        }
+        for (Attachment attachment : pending) {
+            releaseLock(attachment.lock);
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return slot holding given tile or -1 if there is none
+     */
+    private int find(long key, long version) {
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (matches(slot, key, version)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the entry of given slot lists given tile
+     */
+    private boolean matches(int slot, long key, long version) {
+        int entry = getEntryOffset(slot);
+        return segment.getInt(entry + 4) == STATE_USED && segment.getLong(entry + 8) == key
+                && segment.getLong(entry + 16) == version;
+    }
+
+    /**
+     * @return slots not pinned by this process, free first and least recently
+     * used afterwards
+     */
+    private List<Integer> getSlotsByAccess() {
+        final long[] stamps = new long[slotCount];
+        List<Integer> slots = new ArrayList<Integer>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            int entry = getEntryOffset(slot);
+            stamps[slot] = segment.getInt(entry + 4) == STATE_FREE ? Long.MIN_VALUE : segment.getLong(entry + 24);
+            slots.add(slot);
+        }
+        for (Attachment attachment : attachments.values()) {
+            slots.set(attachment.slot, -1);
+        }
+        for (Attachment attachment : pending) {
+            slots.set(attachment.slot, -1);
+        }
+        slots.removeAll(Collections.singleton(-1));
+        Collections.sort(slots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Long.compare(stamps[first], stamps[second]);
+            }
+        });
+        return slots;
+    }
+
+    /**
+     * Will stamp access of given slot. Concurrent stamps may overwrite each
+     * other, order of eviction is approximate only.
+     */
+    private void touch(int slot) {
+        segment.putLong(getEntryOffset(slot) + 24, System.currentTimeMillis());
+    }
+
+    /**
+     * @return lock of byte range of given slot or <code>null</code> if another
+     * process or this one holds conflicting lock
+     */
+    private FileLock tryLock(int slot, boolean shared) {
+        try {
+            return channel.tryLock(slotsOffset + (long) slot * slotSize, slotSize, shared);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        } catch (IOException e) {
+            Logger.logWarning("Failed to lock slot " + slot + " of shared tile cache '" + file + "'!", e);
+            return null;
+        }
+    }
+
+    private void releaseLock(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Logger.logWarning("Failed to unlock slot of shared tile cache '" + file + "'!", e);
+        }
+    }
+
+    private ElevationTile newTile(long key, SampleBuffer buffer) {
+        return new ElevationTile(buffer, TileKey.getLatitudeIndex(key), TileKey.getLongitudeIndex(key),
+                TileKey.getDepth(key), resolution);
+    }
+
+    private int getEntryOffset(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    /**
+     * @return buffer of given slot sharing memory with the segment
+     */
+    private ByteBuffer getSlot(int slot) {
+        ByteBuffer buffer = segment.duplicate();
+        int offset = slotsOffset + slot * slotSize;
+        buffer.position(offset).limit(offset + slotSize);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return file of the segment
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * @return count of slots holding a tile, pinned or not
+     */
+    public int getUsedSlots() {
+        int used = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (segment.getInt(getEntryOffset(slot) + 4) == STATE_USED) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return count of slots pinned by this process
+     */
+    public synchronized int getPinnedSlots() {
+        return attachments.size() + pending.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return count of tiles stored by this process
+     */
+    public long getStores() {
+        return stores.sum();
+    }
+
+    /**
+     * @return count of tiles overwritten by tiles stored by this process
+     */
+    public long getRecycles() {
+        return recycles.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SharedTileCache %s %d/%d slots (%d pinned), %d hits, %d misses, %d stores, %d recycles",
+                file, getUsedSlots(), slotCount, getPinnedSlots(), getHits(), getMisses(), getStores(),
+                getRecycles());
+    }
+
+    /**
+     * Slot pinned by this process with the tile reading from it.
+     */
+    private static class Attachment {
+        private final long key;
+        private final long version;
+        private final int slot;
+        private final FileLock lock;
+        private final SampleBuffer buffer;
+        private final ElevationTile tile;
+
+        /**
+         * Count of obtained and not released copies of the tile
+         */
+        private int count = 1;
+
+        private Attachment(long key, long version, int slot, FileLock lock, SampleBuffer buffer,
+                           ElevationTile tile) {
+            this.key = key;
+            this.version = version;
+            this.slot = slot;
+            this.lock = lock;
+            this.buffer = buffer;
+            this.tile = tile;
+        }
+    }
+}
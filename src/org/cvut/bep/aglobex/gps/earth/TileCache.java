@@ -0,0 +1,408 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches loaded tiles within a budget of bytes. Every tile is
+ * weighted by {@link ElevationTile#getByteSize()} and least recently used
+ * tiles are evicted once the budget is exceeded. Pinned tiles are never
+ * evicted, so they may exceed the budget on their own. Tiles which lost their
+ * data (released off-heap tiles) are dropped on lookup. Cache counts hits,
+ * misses, loads, evictions and time spent by loads reported by its user.<br><br>
+ * Cache is thread-safe. Lookups take no lock and only stamp the time of access
+ * of the tile, while insertions, evictions and pinning are serialized. Victim
+ * of eviction is found by scan of the stamps, which is cheap compared to load
+ * of a tile. Evicted tiles may be handed over to a lower tier of caching, see
+ * {@link EvictionListener}.
+ */
+public class TileCache {
+    /**
+     * Maximum bytes of cached tiles
+     */
+    private volatile long budget;
+
+    /**
+     * Bytes of currently cached tiles
+     */
+    private final AtomicLong weight = new AtomicLong();
+
+    /**
+     * Cached tiles
+     */
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+    /**
+     * Count of pins of every pinned key, tile may be pinned before it is
+     * loaded. Guarded by this cache.
+     */
+    private final Map<Long, Integer> pins = new HashMap<Long, Integer>();
+
+    /**
+     * Listener of evictions or <code>null</code>
+     */
+    private volatile EvictionListener evictionListener = null;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+
+    /**
+     * Will create cache limited by given budget.
+     *
+     * @param budget maximum bytes of cached tiles
+     */
+    public TileCache(long budget) {
+        setBudget(budget);
+    }
+
+    /**
+     * Will look up tile of given key.
+     *
+     * @param key of the tile
+     * @return cached tile or <code>null</code>
+     */
+    public ElevationTile get(long key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.tile.hasData()) {
+            remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.lastAccess = System.nanoTime();
+        entry.accesses.incrementAndGet();
+        return entry.tile;
+    }
+
+    /**
+     * Will look up tile of given key without affecting statistics and
+     * eviction order.
+     *
+     * @param key of the tile
+     * @return cached tile or <code>null</code>
+     */
+    public ElevationTile peek(long key) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.tile.hasData() ? entry.tile : null;
+    }
+
+    /**
+     * Will cache given tile, evicting least recently used tiles if budget is
+     * exceeded. Tile heavier than whole budget is not cached unless pinned.
+     *
+     * @param key  of the tile
+     * @param tile to be cached
+     */
+    public synchronized void put(long key, ElevationTile tile) {
+        Entry previous = entries.get(key);
+        Entry entry = new Entry(tile, previous != null ? previous.accesses.get() + 1 : 1);
+        if (entry.weight > budget && !pins.containsKey(key)) {
+            if (previous != null) {
+                remove(key, previous);
+            }
+            return;
+        }
+        previous = entries.put(key, entry);
+        if (previous != null) {
+            weight.addAndGet(-previous.weight);
+        }
+        weight.addAndGet(entry.weight);
+        evict();
+    }
+
+    /**
+     * Will remove given entry unless it was replaced meanwhile.
+     */
+    private void remove(long key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    /**
+     * Will check presence of tile of given key without affecting statistics
+     * and eviction order.
+     *
+     * @param key of the tile
+     * @return true if the tile is cached
+     */
+    public boolean contains(long key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @param key of the tile
+     * @return count of accesses (loads and hits) of cached tile, zero if the
+     * tile is not cached
+     */
+    public int getAccesses(long key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.accesses.get() : 0;
+    }
+
+    /**
+     * Will add given count to accesses of cached tile, e.g. accesses counted
+     * before the tile was restored from a snapshot.
+     *
+     * @param key      of the tile
+     * @param accesses to be added
+     */
+    public void addAccesses(long key, int accesses) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.accesses.addAndGet(accesses);
+        }
+    }
+
+    /**
+     * @return entries sorted from least recently used one
+     */
+    private List<Map.Entry<Long, Entry>> getEntriesByAccess() {
+        List<Map.Entry<Long, Entry>> sorted = new ArrayList<Map.Entry<Long, Entry>>(entries.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<Long, Entry>>() {
+            @Override
+            public int compare(Map.Entry<Long, Entry> first, Map.Entry<Long, Entry> second) {
+                return Long.compare(first.getValue().lastAccess, second.getValue().lastAccess);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @return keys of cached tiles with count of their accesses (loads and
+     * hits), least recently used first
+     */
+    public Map<Long, Integer> getAccessCounts() {
+        Map<Long, Integer> counts = new LinkedHashMap<Long, Integer>();
+        for (Map.Entry<Long, Entry> entry : getEntriesByAccess()) {
+            counts.put(entry.getKey(), entry.getValue().accesses.get());
+        }
+        return counts;
+    }
+
+    /**
+     * @return cached tiles, least recently used first
+     */
+    public Map<Long, ElevationTile> getTiles() {
+        Map<Long, ElevationTile> tiles = new LinkedHashMap<Long, ElevationTile>();
+        for (Map.Entry<Long, Entry> entry : getEntriesByAccess()) {
+            tiles.put(entry.getKey(), entry.getValue().tile);
+        }
+        return tiles;
+    }
+
+    /**
+     * Will record tile load performed after a miss.
+     *
+     * @param nanos time spent by the load
+     */
+    public void recordLoad(long nanos) {
+        loads.increment();
+        loadTimeNanos.add(nanos);
+    }
+
+    /**
+     * Will evict least recently used unpinned tiles until the budget is met.
+     * Caller has to hold lock of this cache.
+     */
+    private void evict() {
+        while (weight.get() > budget) {
+            long victimKey = 0;
+            Entry victim = null;
+            for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+                if (pins.containsKey(entry.getKey())) {
+                    continue;
+                }
+                if (victim == null || entry.getValue().lastAccess < victim.lastAccess) {
+                    victimKey = entry.getKey();
+                    victim = entry.getValue();
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            if (entries.remove(victimKey, victim)) {
+                weight.addAndGet(-victim.weight);
+                evictions.increment();
+                EvictionListener listener = evictionListener;
+                if (listener != null) {
+                    listener.evicted(victimKey, victim.tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Will protect tile of given key against eviction. Pins are counted, so
+     * the tile stays pinned until unpinned as many times.
+     *
+     * @param key of the tile
+     */
+    public synchronized void pin(long key) {
+        Integer count = pins.get(key);
+        pins.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Will remove one pin of tile of given key.
+     *
+     * @param key of the tile
+     */
+    public synchronized void unpin(long key) {
+        Integer count = pins.get(key);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            pins.put(key, count - 1);
+        } else {
+            pins.remove(key);
+            evict();
+        }
+    }
+
+    /**
+     * Will remove all pins.
+     */
+    public synchronized void unpinAll() {
+        pins.clear();
+        evict();
+    }
+
+    /**
+     * Will remove tile of given key, e.g. when newer version of it is
+     * available. Pins and statistics are kept.
+     *
+     * @param key of the tile
+     */
+    public synchronized void invalidate(long key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    /**
+     * Will remove all tiles, pins and statistics are kept.
+     */
+    public synchronized void clear() {
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Will change the budget evicting tiles if needed.
+     *
+     * @param budget maximum bytes of cached tiles
+     */
+    public synchronized void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Invalid budget of tile cache " + budget + "!");
+        }
+        this.budget = budget;
+        evict();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param evictionListener to be notified of tiles evicted from now on,
+     *                         <code>null</code> for none
+     */
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @return bytes of currently cached tiles
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return count of cached tiles
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return total time spent by recorded loads in nanoseconds
+     */
+    public long getLoadTimeNanos() {
+        return loadTimeNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TileCache %d tiles, %d/%d bytes, %d hits, %d misses, %d loads (%.1f ms), %d evictions",
+                size(), getWeight(), budget, getHits(), getMisses(), getLoads(), getLoadTimeNanos() / 1e6,
+                getEvictions());
+    }
+
+    /**
+     * Listener of tiles evicted because of the budget. Tiles removed
+     * explicitly or dropped for lost data are not reported.
+     */
+    public interface EvictionListener {
+        /**
+         * Will be called right after the tile was evicted, lock of the cache
+         * is held.
+         *
+         * @param key  of the tile
+         * @param tile evicted tile
+         */
+        void evicted(long key, ElevationTile tile);
+    }
+
+    /**
+     * Cached tile with its weight fixed at insertion.
+     */
+    private static class Entry {
+        private final ElevationTile tile;
+        private final long weight;
+        private final AtomicInteger accesses;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Entry(ElevationTile tile, int accesses) {
+            this.tile = tile;
+            this.weight = tile.getByteSize();
+            this.accesses = new AtomicInteger(accesses);
+        }
+    }
+}
@@ -0,0 +1,671 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * This class describes binary tile format that is designed to be memory mapped
+ * and read without any deserialization. File consists of fixed size header
+ * followed by raw samples.<br><br>
+ * <h5>Header (little-endian, {@link #HEADER_SIZE} bytes):</h5>
+ * <pre>
+ * offset  type    content
+ *      0  int     magic number {@link #MAGIC}
+ *      4  short   format version
+ *      6  byte    sample type, see {@link SampleType}
+ *      7  byte    depth in the quad tree
+ *      8  int     width (samples along longitude axis)
+ *     12  int     height (samples along latitude axis)
+ *     16  int     index in quad tree along latitude axis
+ *     20  int     index in quad tree along longitude axis
+ *     24  double  latitude of left upper corner in degrees
+ *     32  double  longitude of left upper corner in degrees
+ *     40  double  latitude of right lower corner in degrees
+ *     48  double  longitude of right lower corner in degrees
+ *     56  double  scale of quantized samples
+ *     64  double  offset of quantized samples
+ *     72  double  maximum error of quantized samples in meters
+ *     80  int     block size, zero for contiguous body (version 2 only)
+ *     84  int     offset of {@link TileSummary} from the beginning of the
+ *                 record, zero if there is none
+ *     88  double  value of all samples (version 3 only)
+ *     96  -       reserved, zero filled
+ * </pre>
+ * <h5>Body:</h5>
+ * Samples in row-major order, the first sample corresponds to the top left-hand
+ * corner of the tile and rows go from north to south.<br><br>
+ * <h5>Blocked body (version 2):</h5>
+ * Tile is split into square blocks of block size samples. Body starts with
+ * directory of int offsets of blocks from the beginning of the record, blocks
+ * are ordered row-major and offset -1 marks absent block (area without data).
+ * Directory is padded to eight bytes and followed by present blocks, each with
+ * its samples in row-major order. Only touched blocks of mapped tile are paged
+ * in and absent blocks take no space.<br><br>
+ * <h5>Constant tile (version 3):</h5>
+ * Tile whose samples are all equal (sea level, lakes, tiles without data) is
+ * written as header only, the value is stored in the header and there is no
+ * body nor summary. Writers choose this version on their own.<br><br>
+ * <h5>Summary:</h5>
+ * Body is followed by {@link TileSummary} of the samples, aligned to eight
+ * bytes.<br><br>
+ * <h5>Narrow tile:</h5>
+ * Tile of {@link TileScheme#ADAPTIVE} repository may have fewer samples per
+ * row than resolution, its height is always the resolution. Samples of a row
+ * are spread evenly over the longitude span of the tile. Blocked body of
+ * narrow tile has block size dividing both dimensions and there is no summary
+ * of narrow tile.<br><br>
+ * <h5>Quantized samples</h5>
+ * {@link SampleType#INT16} samples are stored as {@code round((value-offset)/scale)},
+ * so elevation is {@code offset+scale*sample}. Value {@link #INT16_NO_DATA}
+ * marks missing sample (NaN). Scale and offset are chosen per tile to cover
+ * its range with at least {@link #INT16_SCALE} meters precision. Float samples
+ * have zero scale and offset.
+ */
+public final class TileFormat {
+    /**
+     * Extension used for tile files in this format.
+     */
+    public final static String EXTENSION = "elv";
+
+    /**
+     * Magic number at the beginning of every tile ("ELVT" in file).
+     */
+    public final static int MAGIC = 0x54564C45;
+
+    /**
+     * Version of the format with contiguous body.
+     */
+    public final static short VERSION = 1;
+
+    /**
+     * Version of the format with blocked body.
+     */
+    public final static short BLOCKED_VERSION = 2;
+
+    /**
+     * Version of the format of constant tile without body.
+     */
+    public final static short CONSTANT_VERSION = 3;
+
+    /**
+     * Preferred size of the block of blocked tiles.
+     */
+    public final static int DEFAULT_BLOCK_SIZE = 64;
+
+    /**
+     * Size of the header in bytes. Body starts right after it.
+     */
+    public final static int HEADER_SIZE = 128;
+
+    /**
+     * Preferred quantization step in meters. It is enlarged only for tiles
+     * whose range does not fit in 16 bits with this step.
+     */
+    public final static double INT16_SCALE = 0.1;
+
+    /**
+     * Quantized value marking missing sample.
+     */
+    public final static short INT16_NO_DATA = Short.MIN_VALUE;
+
+    /**
+     * Type of samples stored in the body of tile.
+     */
+    public enum SampleType {
+        /**
+         * 64 bit IEEE 754 floating point value in meters
+         */
+        FLOAT64(0, 8),
+        /**
+         * 32 bit IEEE 754 floating point value in meters
+         */
+        FLOAT32(1, 4),
+        /**
+         * 16 bit signed integer with per tile scale and offset
+         */
+        INT16(2, 2);
+
+        /**
+         * Identifier stored in the header
+         */
+        public final byte id;
+
+        /**
+         * Bytes occupied by single sample
+         */
+        public final int size;
+
+        SampleType(int id, int size) {
+            this.id = (byte) id;
+            this.size = size;
+        }
+
+        /**
+         * @param id stored in the header
+         * @return sample type of given id or <code>null</code> if unknown
+         */
+        public static SampleType fromId(byte id) {
+            for (SampleType type : values()) {
+                if (type.id == id) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private TileFormat() {
+    }
+
+    /**
+     * Will construct name of the tile file from given indices and depth. Naming
+     * follows the scheme used for other tile files in repository.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @return file name without any directory
+     */
+    public static String getFileName(int idxLatitude, int idxLongitude, byte depth) {
+        return String.format("data_%04d_%04d_%02d.%s", idxLatitude, idxLongitude, depth, EXTENSION);
+    }
+
+    /**
+     * Will calculate size of whole tile record (header, body and summary) in
+     * bytes. Record of constant tile is smaller.
+     *
+     * @param resolution of the tile
+     * @param type       of samples
+     * @return size in bytes
+     */
+    public static long getRecordSize(int resolution, SampleType type) {
+        return getBodyEnd(resolution, resolution, type) + 8 + TileSummary.getSize(resolution);
+    }
+
+    /**
+     * @param width  samples per row
+     * @param height samples per column
+     * @param type   of samples
+     * @return offset of the end of contiguous body
+     */
+    private static long getBodyEnd(int width, int height, SampleType type) {
+        return HEADER_SIZE + (long) width * height * type.size;
+    }
+
+    /**
+     * Will calculate maximum size of tile record (header and body) in bytes
+     * with given block size, that is the size with all blocks present.
+     *
+     * @param resolution of the tile
+     * @param type       of samples
+     * @param blockSize  of blocked body, zero for contiguous body
+     * @return size in bytes
+     */
+    public static long getRecordSize(int resolution, SampleType type, int blockSize) {
+        return getRecordSize(resolution, resolution, type, blockSize);
+    }
+
+    /**
+     * Will calculate maximum size of record of possibly narrow tile, see
+     * {@link #getRecordSize(int, SampleType, int)}.
+     *
+     * @param width      samples per row, at most resolution
+     * @param resolution of the tile, that is samples per column
+     * @param type       of samples
+     * @param blockSize  of blocked body, zero for contiguous body
+     * @return size in bytes
+     */
+    public static long getRecordSize(int width, int resolution, SampleType type, int blockSize) {
+        long size = getBodyEnd(width, resolution, type);
+        if (width == resolution) {
+            size += 8 + TileSummary.getSize(resolution);
+        }
+        if (blockSize != 0) {
+            size += getDirectorySize((width / blockSize) * (resolution / blockSize));
+        }
+        return size;
+    }
+
+    /**
+     * @param blocks count of blocks of the tile
+     * @return size of block directory padded to eight bytes
+     */
+    private static int getDirectorySize(int blocks) {
+        return (blocks * 4 + 7) & ~7;
+    }
+
+    /**
+     * Will map given tile file to memory and validate its header against given
+     * tile definition.
+     *
+     * @param file         to be mapped
+     * @param idxLatitude  expected in the header
+     * @param idxLongitude expected in the header
+     * @param depth        expected in the header
+     * @param resolution   expected in the header, narrow tile is accepted too
+     * @return buffer over the mapped samples
+     * @throws IOException in case the file cannot be mapped or is not valid
+     */
+    public static SampleBuffer map(File file, int idxLatitude, int idxLongitude, byte depth,
+                                   int resolution) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            //mapping stays valid after the channel is closed
+            ByteBuffer record = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(record, idxLatitude, idxLongitude, depth, resolution);
+        } catch (IOException e) {
+            throw new IOException("Invalid tile file '" + file + "': " + e.getMessage(), e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Will read header of tile record starting at position zero of given buffer
+     * and wrap its body. No samples are copied.
+     *
+     * @param record       containing header and body
+     * @param idxLatitude  expected in the header
+     * @param idxLongitude expected in the header
+     * @param depth        expected in the header
+     * @param resolution   expected in the header, narrow tile is accepted too
+     * @return buffer over the samples of the record
+     * @throws IOException in case the header does not match
+     */
+    public static SampleBuffer read(ByteBuffer record, int idxLatitude, int idxLongitude, byte depth,
+                                    int resolution) throws IOException {
+        record = record.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (record.capacity() < HEADER_SIZE || record.getInt(0) != MAGIC) {
+            throw new IOException("missing tile header");
+        }
+        short version = record.getShort(4);
+        if (version != VERSION && version != BLOCKED_VERSION && version != CONSTANT_VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+        SampleType type = SampleType.fromId(record.get(6));
+        if (type == null) {
+            throw new IOException("unknown sample type " + record.get(6));
+        }
+        int width = record.getInt(8);
+        int height = record.getInt(12);
+        if (record.get(7) != depth || record.getInt(16) != idxLatitude || record.getInt(20) != idxLongitude) {
+            throw new IOException("header describes tile (" + record.getInt(16) + ", "
+                    + record.getInt(20) + ") depth " + record.get(7));
+        }
+        if (width <= 0 || width > resolution || height != resolution) {
+            throw new IOException("tile resolution " + width + "x" + height + " instead of " + resolution);
+        }
+
+        if (version == CONSTANT_VERSION) {
+            return SampleBuffer.constant(record.getDouble(88), type, width, height);
+        }
+
+        //contiguous body
+        int blockSize = version == BLOCKED_VERSION ? record.getInt(80) : 0;
+        SampleBuffer buffer;
+        if (blockSize == 0) {
+            if (record.capacity() < getBodyEnd(width, height, type)) {
+                throw new IOException("tile body is truncated");
+            }
+            record.position(HEADER_SIZE);
+            buffer = new SampleBuffer(record.slice(), type, width, height,
+                    record.getDouble(56), record.getDouble(64), record.getDouble(72));
+        } else {
+            buffer = readBlocked(record, type, width, height, blockSize);
+        }
+
+        //summary
+        int summaryOffset = record.getInt(84);
+        if (summaryOffset > 0 && width == height) {
+            if (summaryOffset + TileSummary.getSize(resolution) > record.capacity()) {
+                throw new IOException("tile summary is truncated");
+            }
+            record.position(summaryOffset);
+            buffer.setSummary(new TileSummary(record.slice(), resolution));
+        }
+        return buffer;
+    }
+
+    /**
+     * Will wrap blocked body of given record.
+     *
+     * @param record    containing header and body
+     * @param type      of samples
+     * @param width     samples per row
+     * @param height    samples per column
+     * @param blockSize of the body
+     * @return buffer over the samples of the record
+     * @throws IOException in case the directory is not valid
+     */
+    private static SampleBuffer readBlocked(ByteBuffer record, SampleType type, int width, int height,
+                                            int blockSize) throws IOException {
+
+        //blocked body, offsets are made relative to the body
+        if (blockSize < 0 || width % blockSize != 0 || height % blockSize != 0) {
+            throw new IOException("block size " + blockSize + " does not divide tile " + width + "x" + height);
+        }
+        int blocks = (width / blockSize) * (height / blockSize);
+        if (record.capacity() < HEADER_SIZE + getDirectorySize(blocks)) {
+            throw new IOException("block directory is truncated");
+        }
+        long blockBytes = (long) blockSize * blockSize * type.size;
+        int[] blockOffsets = new int[blocks];
+        for (int block = 0; block < blockOffsets.length; block++) {
+            int offset = record.getInt(HEADER_SIZE + block * 4);
+            if (offset >= 0 && (offset < HEADER_SIZE || offset + blockBytes > record.capacity())) {
+                throw new IOException("block " + block + " lies outside of the tile");
+            }
+            blockOffsets[block] = offset < 0 ? -1 : offset - HEADER_SIZE;
+        }
+        record.position(HEADER_SIZE);
+        return new SampleBuffer(record.slice(), type, width, height,
+                record.getDouble(56), record.getDouble(64), record.getDouble(72), blockSize, blockOffsets);
+    }
+
+    /**
+     * Will write tile record to given buffer starting at its current position.
+     *
+     * @param target       buffer with enough remaining space
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param samples      elevations in meters in row-major order
+     * @param resolution   of the tile
+     * @param type         of samples to be written
+     */
+    public static void write(ByteBuffer target, int idxLatitude, int idxLongitude, byte depth,
+                             double[] samples, int resolution, SampleType type) {
+        write(target, idxLatitude, idxLongitude, depth, samples, resolution, type, 0);
+    }
+
+    /**
+     * Will write tile record to given buffer starting at its current position.
+     * In case of blocked body, blocks containing only NaN samples are written
+     * as absent. Summary of the samples is written after the body. Tile whose
+     * samples are all equal is written as constant record without body.
+     *
+     * @param target       buffer with enough remaining space
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param samples      elevations in meters in row-major order
+     * @param resolution   of the tile
+     * @param type         of samples to be written
+     * @param blockSize    of blocked body dividing resolution, zero for contiguous body
+     */
+    public static void write(ByteBuffer target, int idxLatitude, int idxLongitude, byte depth,
+                             double[] samples, int resolution, SampleType type, int blockSize) {
+        write(target, idxLatitude, idxLongitude, depth, samples, resolution, resolution, type, blockSize);
+    }
+
+    /**
+     * Will write record of possibly narrow tile to given buffer starting at
+     * its current position, see
+     * {@link #write(ByteBuffer, int, int, byte, double[], int, SampleType, int)}.
+     * Summary is written for square tile only.
+     *
+     * @param target       buffer with enough remaining space
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param samples      elevations in meters in row-major order
+     * @param width        samples per row, at most resolution
+     * @param resolution   of the tile, that is samples per column
+     * @param type         of samples to be written
+     * @param blockSize    of blocked body dividing both dimensions, zero for contiguous body
+     */
+    public static void write(ByteBuffer target, int idxLatitude, int idxLongitude, byte depth,
+                             double[] samples, int width, int resolution, SampleType type, int blockSize) {
+        assert (width > 0 && width <= resolution && samples.length == width * resolution);
+        assert (blockSize == 0 || (blockSize > 0 && width % blockSize == 0 && resolution % blockSize == 0));
+        ByteBuffer record = target.slice().order(ByteOrder.LITTLE_ENDIAN);
+        boolean constant = isConstant(samples);
+
+        //calculate boundaries
+        double degreesPerTile = 180.0 / (1 << depth);
+
+        //calculate quantization covering range of the data
+        double scale = 0;
+        double offset = 0;
+        if (type == SampleType.INT16 && !constant) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double value : samples) {
+                if (!Double.isNaN(value)) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            if (min > max) {
+                min = max = 0;
+            }
+            scale = Math.max(INT16_SCALE, (max - min) / (2 * Short.MAX_VALUE));
+            offset = (min + max) / 2;
+        }
+
+        //header
+        record.putInt(MAGIC);
+        record.putShort(constant ? CONSTANT_VERSION : blockSize == 0 ? VERSION : BLOCKED_VERSION);
+        record.put(type.id);
+        record.put(depth);
+        record.putInt(width);
+        record.putInt(resolution);
+        record.putInt(idxLatitude);
+        record.putInt(idxLongitude);
+        record.putDouble((idxLatitude + 1) * degreesPerTile - 90);
+        record.putDouble(idxLongitude * degreesPerTile - 180);
+        record.putDouble(idxLatitude * degreesPerTile - 90);
+        record.putDouble((idxLongitude + 1) * degreesPerTile - 180);
+        record.putDouble(scale);
+        record.putDouble(offset);
+        record.putDouble(scale / 2);
+        record.putInt(constant ? 0 : blockSize);
+        while (record.position() < HEADER_SIZE) {
+            record.put((byte) 0);
+        }
+        if (constant) {
+            record.putDouble(88, samples[0]);
+            target.position(target.position() + HEADER_SIZE);
+            return;
+        }
+
+        //body
+        if (blockSize == 0) {
+            for (double value : samples) {
+                putSample(record, value, type, scale, offset);
+            }
+        } else {
+            int blocksPerRow = width / blockSize;
+            int blocks = blocksPerRow * (resolution / blockSize);
+            record.position(HEADER_SIZE + getDirectorySize(blocks));
+            for (int block = 0; block < blocks; block++) {
+                int first = (block / blocksPerRow) * blockSize * width + (block % blocksPerRow) * blockSize;
+                if (isAbsent(samples, first, width, blockSize)) {
+                    record.putInt(HEADER_SIZE + block * 4, -1);
+                    continue;
+                }
+                record.putInt(HEADER_SIZE + block * 4, record.position());
+                for (int y = 0; y < blockSize; y++) {
+                    for (int x = 0; x < blockSize; x++) {
+                        putSample(record, samples[first + y * width + x], type, scale, offset);
+                    }
+                }
+            }
+        }
+
+        //summary
+        record.position((record.position() + 7) & ~7);
+        if (width == resolution) {
+            record.putInt(84, record.position());
+            TileSummary.write(record, samples, resolution);
+        }
+
+        target.position(target.position() + record.position());
+    }
+
+    /**
+     * Will check whether all samples are equal, tiles without any data
+     * included.
+     *
+     * @param samples of the tile
+     * @return true if the tile can be written as constant record
+     */
+    public static boolean isConstant(double[] samples) {
+        long first = Double.doubleToLongBits(samples[0]);
+        for (double value : samples) {
+            if (Double.doubleToLongBits(value) != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Will check whether block of samples contains no data at all.
+     *
+     * @param samples    of the tile in row-major order
+     * @param first      index of the top left sample of the block
+     * @param width      samples per row of the tile
+     * @param blockSize  of the block
+     * @return true if all samples of the block are NaN
+     */
+    private static boolean isAbsent(double[] samples, int first, int width, int blockSize) {
+        for (int y = 0; y < blockSize; y++) {
+            for (int x = 0; x < blockSize; x++) {
+                if (!Double.isNaN(samples[first + y * width + x])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Will put single sample to given buffer in given type.
+     *
+     * @param record to be written
+     * @param value  in meters
+     * @param type   of the sample
+     * @param scale  of quantized sample
+     * @param offset of quantized sample
+     */
+    private static void putSample(ByteBuffer record, double value, SampleType type, double scale, double offset) {
+        switch (type) {
+            case FLOAT64:
+                record.putDouble(value);
+                break;
+            case FLOAT32:
+                record.putFloat((float) value);
+                break;
+            case INT16:
+                record.putShort(quantize(value, scale, offset));
+                break;
+        }
+    }
+
+    /**
+     * Will quantize given elevation into 16 bit sample.
+     *
+     * @param value  in meters
+     * @param scale  of the tile
+     * @param offset of the tile
+     * @return quantized sample
+     */
+    private static short quantize(double value, double scale, double offset) {
+        if (Double.isNaN(value)) {
+            return INT16_NO_DATA;
+        }
+        long sample = Math.round((value - offset) / scale);
+        return (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+
+    /**
+     * Will write tile record to given file. The record is written to temporary
+     * file first and moved in place afterwards, so readers which have the
+     * previous version mapped are not affected.
+     *
+     * @param file         to be written
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param data         square array of elevations in meters, indexing [x][y]
+     * @param type         of samples to be written
+     * @throws IOException in case of write failure
+     */
+    public static void write(File file, int idxLatitude, int idxLongitude, byte depth,
+                             double[][] data, SampleType type) throws IOException {
+        assert (data.length != 0 && data.length == data[0].length);
+        write(file, idxLatitude, idxLongitude, depth, ElevationTile.toSamples(data), data.length, type);
+    }
+
+    /**
+     * Will write tile record to given file, see
+     * {@link #write(File, int, int, byte, double[][], SampleType)}.
+     *
+     * @param file         to be written
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param samples      elevations in meters in row-major order
+     * @param resolution   of the tile
+     * @param type         of samples to be written
+     * @throws IOException in case of write failure
+     */
+    public static void write(File file, int idxLatitude, int idxLongitude, byte depth,
+                             double[] samples, int resolution, SampleType type) throws IOException {
+        write(file, idxLatitude, idxLongitude, depth, samples, resolution, type, 0);
+    }
+
+    /**
+     * Will write tile record to given file, see
+     * {@link #write(ByteBuffer, int, int, byte, double[], int, SampleType, int)}.
+     *
+     * @param file         to be written
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param samples      elevations in meters in row-major order
+     * @param resolution   of the tile
+     * @param type         of samples to be written
+     * @param blockSize    of blocked body, zero for contiguous body
+     * @throws IOException in case of write failure
+     */
+    public static void write(File file, int idxLatitude, int idxLongitude, byte depth,
+                             double[] samples, int resolution, SampleType type, int blockSize) throws IOException {
+        write(file, idxLatitude, idxLongitude, depth, samples, resolution, resolution, type, blockSize);
+    }
+
+    /**
+     * Will write record of possibly narrow tile to given file, see
+     * {@link #write(ByteBuffer, int, int, byte, double[], int, int, SampleType, int)}.
+     *
+     * @param file         to be written
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param samples      elevations in meters in row-major order
+     * @param width        samples per row, at most resolution
+     * @param resolution   of the tile, that is samples per column
+     * @param type         of samples to be written
+     * @param blockSize    of blocked body, zero for contiguous body
+     * @throws IOException in case of write failure
+     */
+    public static void write(File file, int idxLatitude, int idxLongitude, byte depth, double[] samples,
+                             int width, int resolution, SampleType type, int blockSize) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate((int) getRecordSize(width, resolution, type, blockSize));
+        write(record, idxLatitude, idxLongitude, depth, samples, width, resolution, type, blockSize);
+
+        File temporary = new File(file.getAbsolutePath() + ".tmp");
+        Files.write(temporary.toPath(), Arrays.copyOf(record.array(), record.position()));
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
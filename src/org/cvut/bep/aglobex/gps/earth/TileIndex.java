@@ -0,0 +1,170 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.File;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class indexes tiles present in the repository of {@link ElevationMap},
+ * so existence of a tile and best available depth at any place are resolved in
+ * memory without touching the file system. Index is built by single listing of
+ * the repository and contents of its packs, and it has to be updated whenever
+ * a tile is written to the repository. Index is thread-safe. Tiles are ordered
+ * by {@link TileKey}, so tiles of any subtree are scanned as a range of keys.
+ */
+class TileIndex {
+    /**
+     * Where the tile is stored.
+     */
+    enum Location {
+        /**
+         * In one of the {@link TilePack} files
+         */
+        PACK,
+        /**
+         * In loose {@link TileFormat} file
+         */
+        FORMAT,
+        /**
+         * In loose legacy file of serialized doubles or image
+         */
+        LEGACY,
+        /**
+         * In versioned {@link TileFormat} file listed by {@link TileManifest}
+         */
+        VERSIONED
+    }
+
+    /**
+     * Pattern of loose tile files, groups are indices, depth and extension.
+     */
+    private final static Pattern TILE_PATTERN = Pattern.compile("data_(\\d+)_(\\d+)_(\\d+)\\.(\\w+)");
+
+    /**
+     * Location of every present tile, see {@link TileKey}
+     */
+    private final ConcurrentNavigableMap<Long, Location> locations = new ConcurrentSkipListMap<Long, Location>();
+
+    /**
+     * Will index tiles of given manifest, packs and loose tile files in
+     * directories of given repository. Versioned tiles shadow all others, packed tiles
+     * shadow loose ones and loose {@link TileFormat} files shadow legacy ones
+     * of the same tile.
+     *
+     * @param repository      directory with the tiles
+     * @param layout          of tile directories of the repository
+     * @param manifest        current manifest of the repository
+     * @param packs           opened packs of the repository
+     * @param legacyExtension extension of legacy tile files
+     */
+    TileIndex(File repository, TileLayout layout, TileManifest manifest, List<TilePack> packs,
+              String legacyExtension) {
+        for (File directory : layout.getDirectories(repository)) {
+            String[] names = directory.list();
+            for (String name : names != null ? names : new String[0]) {
+                Matcher matcher = TILE_PATTERN.matcher(name);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                Location location;
+                if (matcher.group(4).equals(TileFormat.EXTENSION)) {
+                    location = Location.FORMAT;
+                } else if (matcher.group(4).equals(legacyExtension)) {
+                    location = Location.LEGACY;
+                } else {
+                    continue;
+                }
+                int idxLatitude = Integer.parseInt(matcher.group(1));
+                int idxLongitude = Integer.parseInt(matcher.group(2));
+                byte depth = Byte.parseByte(matcher.group(3));
+                //only names the map would construct itself
+                if (!name.equals(String.format("data_%04d_%04d_%02d.%s", idxLatitude, idxLongitude, depth,
+                        matcher.group(4)))) {
+                    continue;
+                }
+                long key = TileKey.getKey(idxLatitude, idxLongitude, depth);
+                if (locations.get(key) != Location.FORMAT) {
+                    locations.put(key, location);
+                }
+            }
+        }
+
+        for (TilePack pack : packs) {
+            for (int entry = 0; entry < pack.getCount(); entry++) {
+                locations.put(pack.getKey(entry), Location.PACK);
+            }
+        }
+
+        for (long key : manifest.getVersions().keySet()) {
+            locations.put(key, Location.VERSIONED);
+        }
+    }
+
+    /**
+     * @param key of the tile, see {@link TileKey}
+     * @return location of the tile or <code>null</code> if it is not present
+     */
+    Location get(long key) {
+        return locations.get(key);
+    }
+
+    /**
+     * Will record tile written to the repository. It is loaded from given
+     * location afterwards, even if it was packed before.
+     *
+     * @param key      of the tile, see {@link TileKey}
+     * @param location of the written tile
+     */
+    void put(long key, Location location) {
+        locations.put(key, location);
+    }
+
+    /**
+     * Will record tile deleted from the repository.
+     *
+     * @param key of the tile, see {@link TileKey}
+     */
+    void remove(long key) {
+        locations.remove(key);
+    }
+
+    /**
+     * Will find deepest present tile containing tile of given indices.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree (preferred)
+     * @return depth of the present tile not larger than given one or -1 if
+     * there is no such tile
+     */
+    byte getBestDepth(int idxLatitude, int idxLongitude, byte depth) {
+        for (long key = TileKey.getKey(idxLatitude, idxLongitude, depth); key >= 0; key = TileKey.getParent(key)) {
+            if (locations.containsKey(key)) {
+                return TileKey.getDepth(key);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Will scan present tiles of subtree of given tile.
+     *
+     * @param key of the tile, see {@link TileKey}
+     * @return keys of the tile (if present) and its present descendants in
+     * ascending order, view backed by the index
+     */
+    NavigableSet<Long> getSubtree(long key) {
+        return locations.subMap(key, true, TileKey.getSubtreeEnd(key), true).navigableKeySet();
+    }
+
+    /**
+     * @return count of present tiles
+     */
+    int size() {
+        return locations.size();
+    }
+}
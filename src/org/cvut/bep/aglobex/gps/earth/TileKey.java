@@ -0,0 +1,170 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+/**
+ * This class calculates keys of quad tree tiles shared by caches, index and
+ * packs of {@link ElevationMap}. Indices of the tile are scaled to
+ * {@link #MAXIMUM_DEPTH} and interleaved (Morton or Z-order, latitude in even
+ * bits) and depth is stored in the lowest five bits. Tiles close to each other
+ * therefore have close keys and every tile is ordered right before all its
+ * descendants, which occupy continuous range of keys, see
+ * {@link #getSubtreeEnd(long)}. Keys are never negative.
+ */
+public final class TileKey {
+    /**
+     * Maximum depth of keyed tiles. Longitude index at this depth occupies 29
+     * bits, so interleaved key with depth fits in long.
+     */
+    public final static byte MAXIMUM_DEPTH = 28;
+
+    private TileKey() {
+    }
+
+    /**
+     * Will calculate key of given tile.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree, at most {@link #MAXIMUM_DEPTH}
+     * @return key of the tile
+     */
+    public static long getKey(int idxLatitude, int idxLongitude, byte depth) {
+        assert (depth >= 0 && depth <= MAXIMUM_DEPTH);
+        long latitude = ((long) idxLatitude) << (MAXIMUM_DEPTH - depth);
+        long longitude = ((long) idxLongitude) << (MAXIMUM_DEPTH - depth);
+        return (interleave(latitude, longitude) << 5) | depth;
+    }
+
+    /**
+     * @param key of the tile, see {@link #getKey(int, int, byte)}
+     * @return depth of the tile
+     */
+    public static byte getDepth(long key) {
+        return (byte) (key & 31);
+    }
+
+    /**
+     * @param key of the tile, see {@link #getKey(int, int, byte)}
+     * @return latitude index of the tile
+     */
+    public static int getLatitudeIndex(long key) {
+        return (int) (compact(key >>> 5) >> (MAXIMUM_DEPTH - getDepth(key)));
+    }
+
+    /**
+     * @param key of the tile, see {@link #getKey(int, int, byte)}
+     * @return longitude index of the tile
+     */
+    public static int getLongitudeIndex(long key) {
+        return (int) (compact(key >>> 6) >> (MAXIMUM_DEPTH - getDepth(key)));
+    }
+
+    /**
+     * @param key of the tile, see {@link #getKey(int, int, byte)}
+     * @return key of the tile one level above containing given tile or -1 if
+     * given tile is at depth zero
+     */
+    public static long getParent(long key) {
+        byte depth = getDepth(key);
+        if (depth == 0) {
+            return -1;
+        }
+        //drop the bits of given level
+        long interleaved = (key >>> 5) & ~((1L << (2 * (MAXIMUM_DEPTH - depth + 1))) - 1);
+        return (interleaved << 5) | (depth - 1);
+    }
+
+    /**
+     * Will calculate key of one of four children of given tile.
+     *
+     * @param key      of the tile, see {@link #getKey(int, int, byte)}
+     * @param quadrant of the child, lowest bit is added to latitude index and
+     *                 second bit to longitude index
+     * @return key of the child
+     */
+    public static long getChild(long key, int quadrant) {
+        byte depth = getDepth(key);
+        assert (depth < MAXIMUM_DEPTH && quadrant >= 0 && quadrant < 4);
+        long interleaved = (key >>> 5) | (((long) quadrant) << (2 * (MAXIMUM_DEPTH - depth - 1)));
+        return (interleaved << 5) | (depth + 1);
+    }
+
+    /**
+     * Will calculate key of tile of same depth shifted by given count of
+     * tiles. Longitude wraps around the antimeridian, latitude does not cross
+     * the poles.
+     *
+     * @param key             of the tile, see {@link #getKey(int, int, byte)}
+     * @param latitudeOffset  in tiles, positive to the north
+     * @param longitudeOffset in tiles, positive to the east
+     * @return key of the neighbour or -1 if it is beyond a pole
+     */
+    public static long getNeighbour(long key, int latitudeOffset, int longitudeOffset) {
+        byte depth = getDepth(key);
+        long idxLatitude = (long) getLatitudeIndex(key) + latitudeOffset;
+        if (idxLatitude < 0 || idxLatitude >= (1L << depth)) {
+            return -1;
+        }
+        long columns = 2L << depth;
+        long idxLongitude = (((long) getLongitudeIndex(key) + longitudeOffset) % columns + columns) % columns;
+        return getKey((int) idxLatitude, (int) idxLongitude, depth);
+    }
+
+    /**
+     * Will calculate end of range of keys of given tile and all its
+     * descendants. Range starts by key of the tile itself, so subtree of the
+     * tile is scanned as all keys from the key up to the end, both inclusive.
+     *
+     * @param key of the tile, see {@link #getKey(int, int, byte)}
+     * @return largest key of the subtree (not necessarily valid tile key)
+     */
+    public static long getSubtreeEnd(long key) {
+        long interleaved = (key >>> 5) | ((1L << (2 * (MAXIMUM_DEPTH - getDepth(key)))) - 1);
+        return (interleaved << 5) | 31;
+    }
+
+    /**
+     * @param ancestorKey key of possible ancestor
+     * @param key         key of the tile
+     * @return true if the tile is given ancestor or one of its descendants
+     */
+    public static boolean isInSubtree(long ancestorKey, long key) {
+        return key >= ancestorKey && key <= getSubtreeEnd(ancestorKey);
+    }
+
+    /**
+     * Will interleave bits of given values, lowest bit of latitude becomes
+     * lowest bit of result.
+     *
+     * @param latitude  value of at most 31 bits
+     * @param longitude value of at most 31 bits
+     * @return interleaved value
+     */
+    static long interleave(long latitude, long longitude) {
+        return spread(latitude) | (spread(longitude) << 1);
+    }
+
+    /**
+     * Will move every bit of given 32 bit value to twice its position.
+     */
+    private static long spread(long value) {
+        value &= 0xFFFFFFFFL;
+        value = (value | (value << 16)) & 0x0000FFFF0000FFFFL;
+        value = (value | (value << 8)) & 0x00FF00FF00FF00FFL;
+        value = (value | (value << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | (value << 2)) & 0x3333333333333333L;
+        return (value | (value << 1)) & 0x5555555555555555L;
+    }
+
+    /**
+     * Will collect every other bit of given interleaved value, starting at the
+     * lowest one.
+     */
+    private static long compact(long interleaved) {
+        long value = interleaved & 0x5555555555555555L;
+        value = (value | (value >>> 1)) & 0x3333333333333333L;
+        value = (value | (value >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | (value >>> 4)) & 0x00FF00FF00FF00FFL;
+        value = (value | (value >>> 8)) & 0x0000FFFF0000FFFFL;
+        return (value | (value >>> 16)) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,245 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Layout of directories holding tile files of a repository. Layout is chosen
+ * per repository by {@link #FILE_NAME} file in its root, repository without
+ * it is flat. Packs, manifest and other files of the repository stay in the
+ * root in any layout.
+ */
+public enum TileLayout {
+    /**
+     * All tiles directly in the repository
+     */
+    FLAT,
+    /**
+     * Tiles in directories {@code depth/latPrefix/lonPrefix}, prefixes are
+     * indices without lowest {@link #SHARD_BITS} bits, so a directory holds
+     * at most 4096 tiles of any depth
+     */
+    SHARDED;
+
+    /**
+     * Name of the file with name of the layout in the root of repository.
+     */
+    public final static String FILE_NAME = "tiles.layout";
+
+    /**
+     * Bits of tile index dropped by prefix of sharded directories.
+     */
+    public final static int SHARD_BITS = 6;
+
+    /**
+     * Pattern of files of single tile in any format, groups are indices and
+     * depth.
+     */
+    final static Pattern TILE_FILE_PATTERN = Pattern.compile("(?:data|coords)_(\\d+)_(\\d+)_(\\d+)\\..+");
+
+    /**
+     * Pattern of names of sharded directories.
+     */
+    private final static Pattern SHARD_PATTERN = Pattern.compile("\\d+");
+
+    /**
+     * @param repository   root of the repository
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @return directory holding files of given tile, it may not exist
+     */
+    public File getDirectory(File repository, int idxLatitude, int idxLongitude, byte depth) {
+        if (this == FLAT) {
+            return repository;
+        }
+        return new File(repository, String.format("%02d/%d/%d", depth, idxLatitude >> SHARD_BITS,
+                idxLongitude >> SHARD_BITS));
+    }
+
+    /**
+     * @param repository root of the repository
+     * @return existing directories which may hold tile files
+     */
+    public List<File> getDirectories(File repository) {
+        List<File> directories = new ArrayList<File>();
+        if (this == FLAT) {
+            directories.add(repository);
+            return directories;
+        }
+        for (File depth : listShards(repository)) {
+            for (File latitude : listShards(depth)) {
+                directories.addAll(listShards(latitude));
+            }
+        }
+        return directories;
+    }
+
+    private static List<File> listShards(File directory) {
+        List<File> shards = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            if (file.isDirectory() && SHARD_PATTERN.matcher(file.getName()).matches()) {
+                shards.add(file);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Will find layout of given repository.
+     *
+     * @param repository root of the repository
+     * @return layout named by {@link #FILE_NAME}, {@link #FLAT} if there is
+     * no such file
+     * @throws IOException in case the file cannot be read or names unknown
+     *                     layout
+     */
+    public static TileLayout detect(File repository) throws IOException {
+        File file = new File(repository, FILE_NAME);
+        if (!file.exists()) {
+            return FLAT;
+        }
+        String name = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown tile layout '" + name + "' of '" + repository + "'!", e);
+        }
+    }
+
+    /**
+     * Will mark given repository as using this layout. Tiles already present
+     * are not moved, see {@link #migrate(File, int)}.
+     *
+     * @param repository root of the repository
+     * @throws IOException in case of write failure
+     */
+    public void select(File repository) throws IOException {
+        Files.write(new File(repository, FILE_NAME).toPath(), name().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Will move all tile files of given repository into this layout on given
+     * count of threads and select this layout afterwards. Repository must not
+     * be read during migration, writers of {@link ElevationMap} wait for it.
+     *
+     * @param repository root of the repository
+     * @param threads    count of moving threads
+     * @return count of moved files
+     * @throws IOException in case some file cannot be moved, layout is not
+     *                     changed then and migration may be run again
+     */
+    public int migrate(final File repository, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Count of threads " + threads + " is not positive!");
+        }
+        FileLock lock = TileManifest.lock(repository);
+        try {
+            TileLayout current = detect(repository);
+            if (current == this) {
+                return 0;
+            }
+
+            //tile files are split evenly among the threads
+            List<File> files = new ArrayList<File>();
+            for (File directory : current.getDirectories(repository)) {
+                String[] names = directory.list();
+                for (String name : names != null ? names : new String[0]) {
+                    if (TILE_FILE_PATTERN.matcher(name).matches()) {
+                        files.add(new File(directory, name));
+                    }
+                }
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<Integer>> moves = new ArrayList<Future<Integer>>();
+            int share = (files.size() + threads - 1) / threads;
+            for (int from = 0; from < files.size(); from += share) {
+                final List<File> part = files.subList(from, Math.min(files.size(), from + share));
+                moves.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return moveTiles(repository, part);
+                    }
+                }));
+            }
+            executor.shutdown();
+            int moved = 0;
+            try {
+                for (Future<Integer> move : moves) {
+                    moved += move.get();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IOException("Migration of '" + repository + "' interrupted!", e);
+            } catch (ExecutionException e) {
+                executor.shutdownNow();
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException("Migration of '" + repository + "' failed!", e.getCause());
+            }
+
+            select(repository);
+            if (current == SHARDED) {
+                deleteEmptyShards(repository);
+            }
+            return moved;
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * Will move given tile files into directories of this layout.
+     *
+     * @return count of moved files
+     */
+    private int moveTiles(File repository, List<File> files) throws IOException {
+        int moved = 0;
+        for (File file : files) {
+            String name = file.getName();
+            Matcher matcher = TILE_FILE_PATTERN.matcher(name);
+            matcher.matches();
+            File target = getDirectory(repository, Integer.parseInt(matcher.group(1)),
+                    Integer.parseInt(matcher.group(2)), Byte.parseByte(matcher.group(3)));
+            if (target.equals(file.getParentFile())) {
+                continue;
+            }
+            if (!target.isDirectory() && !target.mkdirs() && !target.isDirectory()) {
+                throw new IOException("Cannot create tile directory '" + target + "'!");
+            }
+            Files.move(file.toPath(), new File(target, name).toPath());
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * Will delete sharded directories left empty, deepest first.
+     */
+    static void deleteEmptyShards(File repository) {
+        for (File depth : listShards(repository)) {
+            for (File latitude : listShards(depth)) {
+                for (File longitude : listShards(latitude)) {
+                    longitude.delete();
+                }
+                latitude.delete();
+            }
+            depth.delete();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class lists tiles of the repository of {@link ElevationMap} written
+ * copy-on-write. Written tile never overwrites a file, it is stored under new
+ * versioned name and becomes visible once new generation of the manifest
+ * replaces the old one by atomic move. Reader therefore sees consistent set of
+ * tiles of single generation and files it reads are never modified. Files of
+ * versions no longer listed are deleted explicitly, see
+ * {@link #prune(File, TileLayout)}. Manifest instance is immutable.<br><br>
+ * <h5>Layout (little-endian):</h5>
+ * <pre>
+ * offset  type    content
+ *      0  int     magic number {@link #MAGIC}
+ *      4  short   format version
+ *      6  short   reserved
+ *      8  long    generation of the manifest
+ *     16  int     count of entries
+ *     20  entry[] long key of tile, see {@link TileKey}, long generation in
+ *                 which the listed version of the tile was written
+ * </pre>
+ */
+final class TileManifest {
+    /**
+     * Magic number at the beginning of every manifest ("ELVM" in file).
+     */
+    final static int MAGIC = 0x4D564C45;
+
+    /**
+     * Current version of the format.
+     */
+    final static short VERSION = 1;
+
+    /**
+     * Name of the manifest file in the repository.
+     */
+    final static String FILE_NAME = "tiles.manifest";
+
+    /**
+     * Name of the file locked by writers of the repository.
+     */
+    private final static String LOCK_FILE_NAME = "tiles.lock";
+
+    /**
+     * Pattern of versioned tile files, groups are indices, depth and generation.
+     */
+    private final static Pattern VERSION_PATTERN = Pattern.compile(
+            "data_(\\d+)_(\\d+)_(\\d+)\\.(\\d+)\\." + TileFormat.EXTENSION);
+
+    private final static int HEADER_SIZE = 20;
+
+    private final static int ENTRY_SIZE = 16;
+
+    /**
+     * Generation of this manifest, zero for repository without manifest
+     */
+    private final long generation;
+
+    /**
+     * Generation of listed version of every versioned tile
+     */
+    private final Map<Long, Long> versions;
+
+    private TileManifest(long generation, Map<Long, Long> versions) {
+        this.generation = generation;
+        this.versions = Collections.unmodifiableMap(versions);
+    }
+
+    /**
+     * @return manifest of generation zero listing no tile
+     */
+    static TileManifest empty() {
+        return new TileManifest(0, new HashMap<Long, Long>());
+    }
+
+    /**
+     * Will read current manifest of given repository.
+     *
+     * @param repository directory with the tiles
+     * @return manifest, empty one of generation zero if there is none
+     * @throws IOException in case the manifest cannot be read
+     */
+    static TileManifest load(File repository) throws IOException {
+        File file = new File(repository, FILE_NAME);
+        if (!file.exists()) {
+            return empty();
+        }
+        ByteBuffer manifest = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (manifest.remaining() < HEADER_SIZE || manifest.getInt() != MAGIC) {
+            throw new IOException("Invalid tile manifest '" + file + "'!");
+        }
+        if (manifest.getShort() != VERSION) {
+            throw new IOException("Unsupported version of tile manifest '" + file + "'!");
+        }
+        manifest.getShort();
+        long generation = manifest.getLong();
+        int count = manifest.getInt();
+        if (manifest.remaining() < ((long) count) * ENTRY_SIZE) {
+            throw new IOException("Truncated tile manifest '" + file + "'!");
+        }
+        Map<Long, Long> versions = new HashMap<Long, Long>(count * 2);
+        for (int i = 0; i < count; i++) {
+            versions.put(manifest.getLong(), manifest.getLong());
+        }
+        return new TileManifest(generation, versions);
+    }
+
+    /**
+     * Will create next generation of this manifest listing given tiles in
+     * their new version and write it to given repository. Manifest is written
+     * to temporary file first and moved in place afterwards. Caller has to
+     * hold lock of the repository, see {@link #lock(File)}.
+     *
+     * @param repository directory with the tiles
+     * @param written    keys of tiles stored in generation following this one
+     * @return published manifest
+     * @throws IOException in case of write failure
+     */
+    TileManifest publish(File repository, Iterable<Long> written) throws IOException {
+        Map<Long, Long> next = new HashMap<Long, Long>(versions);
+        for (long key : written) {
+            next.put(key, generation + 1);
+        }
+        return write(repository, next);
+    }
+
+    /**
+     * Will create next generation of this manifest no longer listing given
+     * tiles and write it to given repository, e.g. when the tiles were evicted
+     * by {@link TileStore}. Caller has to hold lock of the repository, see
+     * {@link #lock(File)}.
+     *
+     * @param repository directory with the tiles
+     * @param removed    keys of tiles not listed by generation following this one
+     * @return published manifest
+     * @throws IOException in case of write failure
+     */
+    TileManifest withdraw(File repository, Collection<Long> removed) throws IOException {
+        Map<Long, Long> next = new HashMap<Long, Long>(versions);
+        next.keySet().removeAll(removed);
+        return write(repository, next);
+    }
+
+    /**
+     * Will write generation following this one listing given versions.
+     */
+    private TileManifest write(File repository, Map<Long, Long> next) throws IOException {
+        ByteBuffer manifest = ByteBuffer.allocate(HEADER_SIZE + next.size() * ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        manifest.putInt(MAGIC);
+        manifest.putShort(VERSION);
+        manifest.putShort((short) 0);
+        manifest.putLong(generation + 1);
+        manifest.putInt(next.size());
+        for (Map.Entry<Long, Long> version : next.entrySet()) {
+            manifest.putLong(version.getKey());
+            manifest.putLong(version.getValue());
+        }
+        manifest.flip();
+
+        File file = new File(repository, FILE_NAME);
+        File temporary = new File(repository, FILE_NAME + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            while (manifest.hasRemaining()) {
+                channel.write(manifest);
+            }
+            //manifest has to be complete on disk before the swap
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return new TileManifest(generation + 1, next);
+    }
+
+    /**
+     * Will lock given repository against other writers, including other
+     * processes. Lock is released by closing its channel.
+     *
+     * @param repository directory with the tiles
+     * @return acquired lock
+     * @throws IOException in case the lock cannot be acquired
+     */
+    static FileLock lock(File repository) throws IOException {
+        FileChannel channel = new RandomAccessFile(new File(repository, LOCK_FILE_NAME), "rw").getChannel();
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Will delete versioned tile files of given repository not listed by its
+     * current manifest, i.e. superseded versions and leftovers of failed
+     * writes. Readers still using older generation must have refreshed before.
+     * Caller has to hold lock of the repository, see {@link #lock(File)}.
+     *
+     * @param repository directory with the tiles
+     * @param layout     of tile directories of the repository
+     * @return count of deleted files
+     * @throws IOException in case the manifest cannot be read
+     */
+    static int prune(File repository, TileLayout layout) throws IOException {
+        TileManifest manifest = load(repository);
+        int deleted = 0;
+        for (File directory : layout.getDirectories(repository)) {
+            String[] names = directory.list();
+            for (String name : names != null ? names : new String[0]) {
+                Matcher matcher = VERSION_PATTERN.matcher(name);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                long key = TileKey.getKey(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                        Byte.parseByte(matcher.group(3)));
+                Long version = manifest.versions.get(key);
+                if ((version == null || version != Long.parseLong(matcher.group(4)))
+                        && new File(directory, name).delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @param key of the tile, see {@link TileKey}
+     * @return name of file of listed version of the tile or <code>null</code>
+     * if the tile is not listed
+     */
+    String getFileName(long key) {
+        Long version = versions.get(key);
+        return version != null ? getFileName(key, version) : null;
+    }
+
+    /**
+     * @param key     of the tile, see {@link TileKey}
+     * @param version generation in which the tile is written
+     * @return name of file of given version of the tile
+     */
+    static String getFileName(long key, long version) {
+        return String.format("data_%04d_%04d_%02d.%d.%s", TileKey.getLatitudeIndex(key),
+                TileKey.getLongitudeIndex(key), TileKey.getDepth(key), version, TileFormat.EXTENSION);
+    }
+
+    /**
+     * @return generation of this manifest, zero for repository without manifest
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return keys of listed tiles with generation of their listed version
+     */
+    Map<Long, Long> getVersions() {
+        return versions;
+    }
+}
@@ -0,0 +1,426 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents single file holding many tiles in {@link TileFormat}.
+ * Records are located through sorted index in the header, so any tile is found
+ * by binary search over the mapped index without touching the file system.<br><br>
+ * <h5>Layout (little-endian):</h5>
+ * <pre>
+ * offset  type    content
+ *      0  int     magic number {@link #MAGIC}
+ *      4  short   format version
+ *      6  short   reserved
+ *      8  int     count of tiles
+ *     12  int     reserved
+ *     16  entry[] index of {@link #ENTRY_SIZE} byte entries sorted by key:
+ *                 long key, long offset of record, int length of record,
+ *                 int position of entry of the tile which wrote the record
+ *                 (version 2 only)
+ *      -  record[] tile records in {@link TileFormat}, in order of index
+ * </pre>
+ * Key is quad tree key, see {@link TileKey}, so the records of
+ * parent tile and its descendants lie next to each other. Tiles of same
+ * content (other than position) share single record found by its content
+ * hash, header of the record then describes the tile which wrote it.
+ */
+public class TilePack {
+    /**
+     * Extension used for pack files.
+     */
+    public final static String EXTENSION = "pack";
+
+    /**
+     * Magic number at the beginning of every pack ("ELVP" in file).
+     */
+    public final static int MAGIC = 0x50564C45;
+
+    /**
+     * Current version of the format.
+     */
+    public final static short VERSION = 2;
+
+    /**
+     * Version of the format without shared records.
+     */
+    private final static short UNSHARED_VERSION = 1;
+
+    /**
+     * Size of the pack header preceding the index.
+     */
+    private final static int HEADER_SIZE = 16;
+
+    /**
+     * Size of single index entry.
+     */
+    private final static int ENTRY_SIZE = 24;
+
+    /**
+     * File of this pack
+     */
+    private final File file;
+
+    /**
+     * Channel kept open for mapping of records in packs too large to be
+     * mapped at once.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Mapping of the whole pack or <code>null</code> if the pack is too large.
+     */
+    private final ByteBuffer mapping;
+
+    /**
+     * Mapping of the index
+     */
+    private final ByteBuffer index;
+
+    /**
+     * Count of tiles in this pack
+     */
+    private final int count;
+
+    /**
+     * True if records may be shared by several tiles
+     */
+    private final boolean shared;
+
+    /**
+     * Will open given pack file and map its index.
+     *
+     * @param file of the pack
+     * @throws IOException in case the file cannot be read or is not a pack
+     */
+    public TilePack(File file) throws IOException {
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            long size = channel.size();
+            if (size <= Integer.MAX_VALUE) {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                mapping = null;
+            }
+
+            ByteBuffer header = map(0, HEADER_SIZE);
+            if (size < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                throw new IOException("Invalid tile pack '" + file + "'!");
+            }
+            short version = header.getShort(4);
+            if (version != VERSION && version != UNSHARED_VERSION) {
+                throw new IOException("Unsupported version of tile pack '" + file + "'!");
+            }
+            shared = version == VERSION;
+            count = header.getInt(8);
+            index = map(HEADER_SIZE, (long) count * ENTRY_SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Will map given region of the pack.
+     *
+     * @param offset in the file
+     * @param length of the region
+     * @return little-endian buffer with the region at position zero
+     * @throws IOException in case of mapping errors
+     */
+    private ByteBuffer map(long offset, long length) throws IOException {
+        if (mapping != null) {
+            ByteBuffer region = mapping.duplicate();
+            region.position((int) offset).limit((int) (offset + length));
+            return region.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param entry position in the index, zero up to {@link #getCount()}
+     * @return quad tree key of the tile at given position
+     */
+    public long getKey(int entry) {
+        return index.getLong(entry * ENTRY_SIZE);
+    }
+
+    /**
+     * Will find record of given tile in the pack.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @return buffer with the record in {@link TileFormat} or <code>null</code>
+     * in case pack does not contain such tile
+     * @throws IOException in case the record cannot be mapped
+     */
+    public ByteBuffer find(int idxLatitude, int idxLongitude, byte depth) throws IOException {
+        int entry = search(TileKey.getKey(idxLatitude, idxLongitude, depth));
+        return entry >= 0 ? map(index.getLong(entry * ENTRY_SIZE + 8), index.getInt(entry * ENTRY_SIZE + 16)) : null;
+    }
+
+    /**
+     * Will read samples of given tile from the pack. Shared record is read
+     * with header of the tile which wrote it, samples are same.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param resolution   expected in the record
+     * @return buffer over the samples or <code>null</code> in case pack does
+     * not contain such tile
+     * @throws IOException in case the record cannot be mapped or is not valid
+     */
+    public SampleBuffer read(int idxLatitude, int idxLongitude, byte depth, int resolution) throws IOException {
+        int entry = search(TileKey.getKey(idxLatitude, idxLongitude, depth));
+        if (entry < 0) {
+            return null;
+        }
+        ByteBuffer record = map(index.getLong(entry * ENTRY_SIZE + 8), index.getInt(entry * ENTRY_SIZE + 16));
+        long writer = getKey(shared ? index.getInt(entry * ENTRY_SIZE + 20) : entry);
+        return TileFormat.read(record, TileKey.getLatitudeIndex(writer), TileKey.getLongitudeIndex(writer),
+                TileKey.getDepth(writer), resolution);
+    }
+
+    /**
+     * Will find entry of given key by binary search over the index.
+     *
+     * @param key of the tile
+     * @return position of the entry or -1 if there is none
+     */
+    private int search(long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = index.getLong(middle * ENTRY_SIZE);
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param key of the tile, see {@link TileKey}
+     * @return true if this pack contains the tile
+     */
+    public boolean contains(long key) {
+        return search(key) >= 0;
+    }
+
+    /**
+     * @return count of tiles in this pack
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return file of this pack
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Will release the channel of this pack. Records found before stay valid.
+     *
+     * @throws IOException in case of errors
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Will build pack out of all {@link TileFormat} files found in given
+     * folder in its {@link TileLayout}. Legacy tiles should be converted
+     * beforehand, versioned tiles of {@link TileManifest} are not packed.
+     * Duplicate tiles, e.g. constant ones of same value, are stored once.
+     *
+     * @param folder   containing the tiles
+     * @param packFile to be written
+     * @return count of packed tiles
+     * @throws IOException in case of read or write errors
+     */
+    public static int build(File folder, File packFile) throws IOException {
+        //collect keys of all tiles
+        List<Entry> entries = new ArrayList<>();
+        if (!folder.isDirectory()) {
+            throw new IOException("Cannot list tiles folder '" + folder + "'!");
+        }
+        List<File> files = new ArrayList<File>();
+        for (File directory : TileLayout.detect(folder).getDirectories(folder)) {
+            File[] listed = directory.listFiles();
+            if (listed != null) {
+                files.addAll(Arrays.asList(listed));
+            }
+        }
+        for (File tileFile : files) {
+            if (!tileFile.isFile() || !tileFile.getName().endsWith("." + TileFormat.EXTENSION)) {
+                continue;
+            }
+            ByteBuffer header = ByteBuffer.allocate(TileFormat.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            RandomAccessFile raf = new RandomAccessFile(tileFile, "r");
+            try {
+                raf.getChannel().read(header, 0);
+                if (header.getInt(0) != TileFormat.MAGIC) {
+                    continue;
+                }
+                int idxLatitude = header.getInt(16);
+                int idxLongitude = header.getInt(20);
+                byte depth = header.get(7);
+                //versioned copies share the header, only plain names are packed
+                if (!tileFile.getName().equals(TileFormat.getFileName(idxLatitude, idxLongitude, depth))) {
+                    continue;
+                }
+                entries.add(new Entry(TileKey.getKey(idxLatitude, idxLongitude, depth), tileFile, raf.length()));
+            } finally {
+                raf.close();
+            }
+        }
+        Collections.sort(entries);
+
+        //find duplicates by hash of content, first tile of same content writes
+        //the record
+        Map<ByteBuffer, Entry> writers = new HashMap<ByteBuffer, Entry>();
+        for (int position = 0; position < entries.size(); position++) {
+            Entry entry = entries.get(position);
+            entry.position = position;
+            ByteBuffer hash = getContentHash(entry.file);
+            Entry writer = writers.get(hash);
+            if (writer == null) {
+                writers.put(hash, entry);
+                writer = entry;
+            }
+            entry.writer = writer;
+        }
+
+        //write header and index, records follow aligned to eight bytes
+        long offset = HEADER_SIZE + (long) entries.size() * ENTRY_SIZE;
+        ByteBuffer head = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+        head.putInt(MAGIC);
+        head.putShort(VERSION);
+        head.putShort((short) 0);
+        head.putInt(entries.size());
+        head.putInt(0);
+        for (Entry entry : entries) {
+            if (entry.writer == entry) {
+                offset = (offset + 7) & ~7L;
+                entry.offset = offset;
+                offset += entry.length;
+            }
+            head.putLong(entry.key);
+            head.putLong(entry.writer.offset);
+            head.putInt((int) entry.length);
+            head.putInt(entry.writer.position);
+        }
+        head.flip();
+
+        File temporary = new File(packFile.getAbsolutePath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel target = raf.getChannel();
+            target.truncate(0);
+            target.write(head, 0);
+            for (Entry entry : entries) {
+                if (entry.writer != entry) {
+                    continue;
+                }
+                FileChannel source = new RandomAccessFile(entry.file, "r").getChannel();
+                try {
+                    long copied = 0;
+                    while (copied < entry.length) {
+                        copied += source.transferTo(copied, entry.length - copied, target.position(entry.offset + copied));
+                    }
+                } finally {
+                    source.close();
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        Files.move(temporary.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * Will calculate hash of content of given tile file. Depth, indices and
+     * boundaries in the header are left out, so tiles of same samples have
+     * same hash.
+     *
+     * @param tileFile in {@link TileFormat}
+     * @return SHA-256 digest of the content
+     * @throws IOException in case of read errors
+     */
+    private static ByteBuffer getContentHash(File tileFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+        byte[] content = Files.readAllBytes(tileFile.toPath());
+        if (content.length >= TileFormat.HEADER_SIZE) {
+            //depth, indices and boundaries of the tile
+            content[7] = 0;
+            Arrays.fill(content, 16, 56, (byte) 0);
+        }
+        digest.update(content);
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    @Override
+    public String toString() {
+        return "TilePack " + file + " (" + count + " tiles)";
+    }
+
+    /**
+     * Tile collected while building the pack.
+     */
+    private static class Entry implements Comparable<Entry> {
+        private final long key;
+        private final File file;
+        private final long length;
+        private long offset;
+        private int position;
+
+        /**
+         * Entry of the first tile of same content, which writes the record
+         */
+        private Entry writer;
+
+        private Entry(long key, File file, long length) {
+            this.key = key;
+            this.file = file;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Entry that) {
+            return Long.compare(this.key, that.key);
+        }
+    }
+}
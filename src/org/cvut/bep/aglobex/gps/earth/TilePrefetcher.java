@@ -0,0 +1,169 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import aglobe.util.Logger;
+
+/**
+ * This class loads tiles needed by a route into the cache of
+ * {@link ElevationMap} on background threads, so reading of tiles overlaps
+ * with lookups of points already loaded. Tiles are requested in the order the
+ * route visits them, legs between points included. Route should fit in the
+ * tile cache, otherwise tiles prefetched at its end may evict ones not yet
+ * used at its beginning.
+ */
+public class TilePrefetcher {
+    /**
+     * Map the tiles are loaded into
+     */
+    private final ElevationMap elevationMap;
+
+    /**
+     * Pool of loading threads
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Will create prefetcher with given count of loading threads. Threads are
+     * daemons, so they do not keep the application running.
+     *
+     * @param elevationMap the tiles are loaded into
+     * @param threads      count of loading threads
+     */
+    public TilePrefetcher(ElevationMap elevationMap, int threads) {
+        this.elevationMap = elevationMap;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tile-prefetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Will calculate tiles of given depth visited by route through given
+     * points. Legs between points are traced tile by tile as straight lines in
+     * latlong, legs longer than 180 degrees of longitude cross the antimeridian
+     * instead.
+     *
+     * @param latitudes  of route points in degrees
+     * @param longitudes of route points in degrees
+     * @param depth      of the tiles
+     * @return pairs of latitude and longitude index in order of first visit
+     */
+    public static List<int[]> getRouteTiles(double[] latitudes, double[] longitudes, byte depth) {
+        double degreesPerTile = 360.0 / (2 << depth);
+        int tilesPerCircle = 2 << depth;
+        LinkedHashSet<Long> keys = new LinkedHashSet<Long>();
+        for (int point = 0; point < latitudes.length; point++) {
+            int idxLatitude = getIndex(latitudes[point], 90, degreesPerTile);
+            int idxLongitude = getIndex(longitudes[point], 180, degreesPerTile);
+            keys.add(TileKey.getKey(idxLatitude, idxLongitude, depth));
+            if (point + 1 == latitudes.length) {
+                break;
+            }
+
+            //leg to next point, step into neighbouring tile whose border is
+            //crossed first until the tile of next point is reached
+            //leg across the antimeridian is traced with longitudes past it
+            double longitudeDegrees = longitudes[point + 1] - longitudes[point];
+            int wrap = longitudeDegrees > 180 ? -1 : longitudeDegrees < -180 ? 1 : 0;
+            int endLatitude = getIndex(latitudes[point + 1], 90, degreesPerTile);
+            int endLongitude = getIndex(longitudes[point + 1], 180, degreesPerTile) + wrap * tilesPerCircle;
+            double latitudeDelta = (latitudes[point + 1] - latitudes[point]) / degreesPerTile;
+            double longitudeDelta = (longitudeDegrees + wrap * 360) / degreesPerTile;
+            double latitudePosition = (latitudes[point] + 90) / degreesPerTile - idxLatitude;
+            double longitudePosition = (longitudes[point] + 180) / degreesPerTile - idxLongitude;
+            double nextLatitude = getBorderCrossing(latitudePosition, latitudeDelta);
+            double nextLongitude = getBorderCrossing(longitudePosition, longitudeDelta);
+            int steps = Math.abs(endLatitude - idxLatitude) + Math.abs(endLongitude - idxLongitude);
+            for (int step = 0; step < steps; step++) {
+                boolean latitudeStep = idxLongitude == endLongitude
+                        || (idxLatitude != endLatitude && nextLatitude < nextLongitude);
+                if (latitudeStep) {
+                    idxLatitude += endLatitude > idxLatitude ? 1 : -1;
+                    nextLatitude += 1 / Math.abs(latitudeDelta);
+                } else {
+                    idxLongitude += endLongitude > idxLongitude ? 1 : -1;
+                    nextLongitude += 1 / Math.abs(longitudeDelta);
+                }
+                keys.add(TileKey.getKey(idxLatitude, Math.floorMod(idxLongitude, tilesPerCircle), depth));
+            }
+        }
+
+        List<int[]> tiles = new ArrayList<int[]>(keys.size());
+        for (long key : keys) {
+            tiles.add(new int[]{TileKey.getLatitudeIndex(key), TileKey.getLongitudeIndex(key)});
+        }
+        return tiles;
+    }
+
+    /**
+     * @return index of tile containing given coordinate
+     */
+    private static int getIndex(double degrees, double maximum, double degreesPerTile) {
+        return (int) Math.floor((degrees + maximum) / degreesPerTile) - (degrees == maximum ? 1 : 0);
+    }
+
+    /**
+     * Will calculate fraction of a leg at which it leaves the tile.
+     *
+     * @param position of the leg start within the tile, zero up to one
+     * @param delta    of the leg in tiles
+     * @return fraction of the leg, infinity if it never crosses the border
+     */
+    private static double getBorderCrossing(double position, double delta) {
+        if (delta > 0) {
+            return (1 - position) / delta;
+        } else if (delta < 0) {
+            return position / -delta;
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Will schedule loading of all tiles of maximum depth of the map visited by
+     * route through given points and return immediately.
+     *
+     * @param latitudes  of route points in degrees
+     * @param longitudes of route points in degrees
+     * @return futures of the loads in route order, each one tells whether any
+     * tile was available
+     */
+    public List<Future<Boolean>> prefetch(double[] latitudes, double[] longitudes) {
+        final byte depth = elevationMap.getMaximumDepth();
+        List<int[]> tiles = getRouteTiles(latitudes, longitudes, depth);
+        List<Future<Boolean>> loads = new ArrayList<Future<Boolean>>(tiles.size());
+        for (final int[] tile : tiles) {
+            loads.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        return elevationMap.prefetchTile(tile[0], tile[1], depth);
+                    } catch (RuntimeException e) {
+                        Logger.logWarning("Failed to prefetch tile (" + tile[0] + ", " + tile[1] + ", "
+                                + depth + ")!", e);
+                        return false;
+                    }
+                }
+            }));
+        }
+        return loads;
+    }
+
+    /**
+     * Will stop loading threads, scheduled loads are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
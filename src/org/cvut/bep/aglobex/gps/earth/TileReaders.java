@@ -0,0 +1,19 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+/**
+ * Store of tiles whose memory may be recycled once the tiles are evicted, see
+ * {@link TileSlabStore} and {@link SharedTileCache}. Readers announce
+ * themselves by {@link #enter()} and {@link #exit()} and check the tile still
+ * has data in between, memory is never recycled while any reader is inside.
+ */
+interface TileReaders {
+    /**
+     * Will announce thread about to read tiles of this store.
+     */
+    void enter();
+
+    /**
+     * Will announce thread finished reading tiles of this store.
+     */
+    void exit();
+}
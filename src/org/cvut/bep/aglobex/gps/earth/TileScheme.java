@@ -0,0 +1,91 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Scheme of sampling of tiles of a repository. Quad tree of tiles is the same
+ * in any scheme, cells span equal degrees along both axes, but a degree of
+ * longitude shrinks by cosine of latitude. Scheme is chosen per repository by
+ * {@link #FILE_NAME} file in its root, repository without it is square.
+ */
+public enum TileScheme {
+    /**
+     * Every tile has resolution samples per row
+     */
+    SQUARE,
+    /**
+     * Tiles away from equator have fewer samples per row, so that samples
+     * stay roughly square in meters, see {@link #getWidth(int, byte, int)}
+     */
+    ADAPTIVE;
+
+    /**
+     * Name of the file with name of the scheme in the root of repository.
+     */
+    public final static String FILE_NAME = "tiles.scheme";
+
+    /**
+     * Samples per row of adaptive tiles are rounded up to multiple of this.
+     */
+    public final static int WIDTH_STEP = 8;
+
+    /**
+     * Will calculate count of samples per row of given tile. Adaptive width
+     * is given by the edge of the tile nearest to equator, so samples are
+     * never wider than tall in meters.
+     *
+     * @param idxLatitude in quad tree
+     * @param depth       in quad tree
+     * @param resolution  of tiles
+     * @return samples per row, at most resolution
+     */
+    public int getWidth(int idxLatitude, byte depth, int resolution) {
+        if (this == SQUARE) {
+            return resolution;
+        }
+        double degreesPerTile = 180.0 / (1 << depth);
+        double south = idxLatitude * degreesPerTile - 90;
+        double north = south + degreesPerTile;
+        double nearest = south > 0 ? south : north < 0 ? -north : 0;
+        int step = Math.min(WIDTH_STEP, resolution);
+        int width = (int) Math.ceil(resolution * Math.cos(Math.toRadians(nearest)) / step) * step;
+        return Math.max(step, Math.min(resolution, width));
+    }
+
+    /**
+     * Will find scheme of given repository.
+     *
+     * @param repository root of the repository
+     * @return scheme named by {@link #FILE_NAME}, {@link #SQUARE} if there
+     * is no such file
+     * @throws IOException in case the file cannot be read or names unknown
+     *                     scheme
+     */
+    public static TileScheme detect(File repository) throws IOException {
+        File file = new File(repository, FILE_NAME);
+        if (!file.exists()) {
+            return SQUARE;
+        }
+        String name = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown tile scheme '" + name + "' of '" + repository + "'!", e);
+        }
+    }
+
+    /**
+     * Will mark given repository as using this scheme. Tiles already present
+     * are kept as they are, tiles of either width are read in any scheme and
+     * only tiles written from now on follow this scheme.
+     *
+     * @param repository root of the repository
+     * @throws IOException in case of write failure
+     */
+    public void select(File repository) throws IOException {
+        Files.write(new File(repository, FILE_NAME).toPath(), name().getBytes(StandardCharsets.US_ASCII));
+    }
+}
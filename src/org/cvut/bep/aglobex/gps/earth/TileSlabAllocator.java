@@ -0,0 +1,150 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class allocates fixed size slots out of direct (off-heap) slabs. Slabs
+ * are allocated lazily by {@link ByteBuffer#allocateDirect(int)} until capacity
+ * is reached and never freed, released slots are recycled instead. Memory used
+ * by the allocator is therefore invisible to garbage collector and bounded by
+ * the capacity.
+ */
+public class TileSlabAllocator {
+    /**
+     * Preferred size of single slab in bytes
+     */
+    private final static int SLAB_SIZE = 64 << 20;
+
+    /**
+     * Size of single slot in bytes
+     */
+    private final int slotSize;
+
+    /**
+     * Count of slots in one slab
+     */
+    private final int slotsPerSlab;
+
+    /**
+     * Maximum count of slots given by capacity
+     */
+    private final int maximumSlots;
+
+    /**
+     * Allocated slabs
+     */
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /**
+     * Stack of released slots available for reuse
+     */
+    private int[] freeSlots = new int[16];
+
+    /**
+     * Count of slots on the stack of released slots
+     */
+    private int freeCount = 0;
+
+    /**
+     * Count of slots handed out from allocated slabs, including released ones
+     */
+    private int usedSlots = 0;
+
+    /**
+     * Will create allocator of slots of given size limited by given capacity.
+     *
+     * @param slotSize size of single slot in bytes
+     * @param capacity maximum bytes occupied by the slabs
+     */
+    public TileSlabAllocator(int slotSize, long capacity) {
+        if (slotSize <= 0 || capacity < slotSize) {
+            throw new IllegalArgumentException("Capacity " + capacity + " cannot hold slot of " + slotSize + " bytes!");
+        }
+        this.slotSize = slotSize;
+        this.slotsPerSlab = Math.max(1, SLAB_SIZE / slotSize);
+        this.maximumSlots = (int) Math.min(Integer.MAX_VALUE, capacity / slotSize);
+    }
+
+    /**
+     * Will allocate new slot, reusing released ones first.
+     *
+     * @return identifier of the slot or -1 if capacity is exhausted
+     */
+    public int allocate() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (usedSlots >= maximumSlots) {
+            return -1;
+        }
+        if (usedSlots == slabs.size() * slotsPerSlab) {
+            int slots = Math.min(slotsPerSlab, maximumSlots - usedSlots);
+            slabs.add(ByteBuffer.allocateDirect(slots * slotSize));
+        }
+        return usedSlots++;
+    }
+
+    /**
+     * Will return buffer of given slot. Position zero of the buffer is the
+     * beginning of the slot and its capacity is the slot size.
+     *
+     * @param slot identifier returned by {@link #allocate()}
+     * @return buffer sharing memory with the slab
+     */
+    public ByteBuffer getBuffer(int slot) {
+        ByteBuffer buffer = slabs.get(slot / slotsPerSlab).duplicate();
+        int offset = (slot % slotsPerSlab) * slotSize;
+        buffer.position(offset).limit(offset + slotSize);
+        return buffer.slice();
+    }
+
+    /**
+     * Will return given slot for reuse. Buffers of the slot must not be used
+     * afterwards.
+     *
+     * @param slot identifier returned by {@link #allocate()}
+     */
+    public void release(int slot) {
+        assert (slot >= 0 && slot < usedSlots);
+        if (freeCount == freeSlots.length) {
+            int[] larger = new int[freeSlots.length * 2];
+            System.arraycopy(freeSlots, 0, larger, 0, freeCount);
+            freeSlots = larger;
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * @return size of single slot in bytes
+     */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * @return maximum count of slots
+     */
+    public int getMaximumSlots() {
+        return maximumSlots;
+    }
+
+    /**
+     * @return count of slots currently in use
+     */
+    public int getAllocatedSlots() {
+        return usedSlots - freeCount;
+    }
+
+    /**
+     * @return bytes allocated off heap by slabs
+     */
+    public long getReservedBytes() {
+        long bytes = 0;
+        for (ByteBuffer slab : slabs) {
+            bytes += slab.capacity();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,220 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps tiles in off-heap slots of {@link TileSlabAllocator}. Every
+ * stored tile is copied into its own slot as {@link TileFormat} record and
+ * replaced by tile reading from the slot. When allocator is exhausted, least
+ * recently used tile is evicted and its slot recycled. Evicted tile becomes
+ * empty, so tiles obtained from this store must not be kept for long.<br><br>
+ * Store itself is not thread-safe, but tiles may be read from other threads
+ * while tiles are put. Readers announce themselves by {@link #enter()} and
+ * {@link #exit()} and check the tile still has data in between. Slots of
+ * evicted tiles are recycled only when there is no reader, so no reader ever
+ * sees slot overwritten by another tile.
+ */
+class TileSlabStore implements TileReaders {
+    /**
+     * Maximum count of waits for readers before slot is given up
+     */
+    private final static int RECYCLE_ATTEMPTS = 64;
+
+    /**
+     * Allocator of the slots
+     */
+    private final TileSlabAllocator allocator;
+
+    /**
+     * Type of samples in slots
+     */
+    private final TileFormat.SampleType type;
+
+    /**
+     * Resolution of stored tiles
+     */
+    private final int resolution;
+
+    /**
+     * Stored tiles in access order, eldest first
+     */
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+
+    /**
+     * Count of threads reading from slots
+     */
+    private final AtomicInteger readers = new AtomicInteger();
+
+    /**
+     * Slots of evicted tiles waiting for readers to leave
+     */
+    private int[] pendingSlots = new int[16];
+
+    /**
+     * Count of slots waiting for readers to leave
+     */
+    private int pendingCount = 0;
+
+    /**
+     * Will create store of tiles in given resolution limited by given capacity.
+     *
+     * @param resolution of stored tiles
+     * @param type       of samples in slots
+     * @param capacity   in bytes
+     */
+    TileSlabStore(int resolution, TileFormat.SampleType type, long capacity) {
+        long slotSize = TileFormat.getRecordSize(resolution, type);
+        if (slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Tile of resolution " + resolution + " does not fit in slot!");
+        }
+        this.allocator = new TileSlabAllocator((int) slotSize, capacity);
+        this.type = type;
+        this.resolution = resolution;
+    }
+
+    /**
+     * @param key of the tile
+     * @return stored tile or <code>null</code>
+     */
+    ElevationTile get(long key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.tile : null;
+    }
+
+    /**
+     * Will announce thread about to read tiles of this store.
+     */
+    public void enter() {
+        readers.incrementAndGet();
+    }
+
+    /**
+     * Will announce thread finished reading tiles of this store.
+     */
+    public void exit() {
+        readers.decrementAndGet();
+    }
+
+    /**
+     * Will copy given tile into a slot, evicting least recently used tiles if
+     * needed.
+     *
+     * @param key  of the tile
+     * @param tile with data
+     * @return tile reading from the slot or <code>null</code> if no slot could
+     * be recycled because of readers
+     */
+    ElevationTile put(long key, ElevationTile tile) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            evict(previous);
+        }
+
+        int slot = allocate();
+        if (slot < 0) {
+            return null;
+        }
+
+        ByteBuffer record = allocator.getBuffer(slot);
+        tile.writeRecord(record, type);
+        SampleBuffer buffer;
+        try {
+            buffer = TileFormat.read(allocator.getBuffer(slot), tile.idxLatitude, tile.idxLongitude,
+                    tile.depth, resolution);
+        } catch (IOException e) {
+            allocator.release(slot);
+            throw new IllegalStateException("Slot record is not valid!", e);
+        }
+
+        ElevationTile stored = new ElevationTile(buffer, tile.idxLatitude, tile.idxLongitude, tile.depth, resolution);
+        entries.put(key, new Entry(stored, buffer, slot));
+        return stored;
+    }
+
+    /**
+     * Will allocate slot, evicting least recently used tiles and recycling
+     * their slots if needed.
+     *
+     * @return slot or -1 if readers keep all evicted slots busy
+     */
+    private int allocate() {
+        for (int attempt = 0; attempt < RECYCLE_ATTEMPTS; attempt++) {
+            recycle();
+            int slot = allocator.allocate();
+            if (slot >= 0) {
+                return slot;
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            if (pendingCount == 0 && eldest.hasNext()) {
+                Entry entry = eldest.next();
+                eldest.remove();
+                evict(entry);
+            } else {
+                Thread.yield();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Will detach tile of given entry from its slot and queue the slot for
+     * recycling.
+     *
+     * @param entry to be evicted
+     */
+    private void evict(Entry entry) {
+        entry.tile.release(entry.buffer);
+        if (pendingCount == pendingSlots.length) {
+            int[] larger = new int[pendingSlots.length * 2];
+            System.arraycopy(pendingSlots, 0, larger, 0, pendingCount);
+            pendingSlots = larger;
+        }
+        pendingSlots[pendingCount++] = entry.slot;
+    }
+
+    /**
+     * Will return slots of evicted tiles to the allocator if nobody reads.
+     * Reader entering afterwards sees its tile detached already.
+     */
+    private void recycle() {
+        if (pendingCount == 0 || readers.get() != 0) {
+            return;
+        }
+        while (pendingCount > 0) {
+            allocator.release(pendingSlots[--pendingCount]);
+        }
+    }
+
+    /**
+     * @return count of stored tiles
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return allocator of this store
+     */
+    TileSlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Tile stored in a slot.
+     */
+    private static class Entry {
+        private final ElevationTile tile;
+        private final SampleBuffer buffer;
+        private final int slot;
+
+        private Entry(ElevationTile tile, SampleBuffer buffer, int slot) {
+            this.tile = tile;
+            this.buffer = buffer;
+            this.slot = slot;
+        }
+    }
+}
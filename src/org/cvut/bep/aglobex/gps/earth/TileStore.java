@@ -0,0 +1,525 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import aglobe.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+/**
+ * This class keeps tiles of a repository within a budget of bytes on disk.
+ * Last access of every tile is tracked in memory and persisted in compact side
+ * index {@link #FILE_NAME} in the root of the repository, so eviction does not
+ * depend on access times of the file system. Once the budget is exceeded,
+ * least recently used leaf tiles (tiles without present descendants) are
+ * deleted, while tiles at {@link #getKeptDepth()} and above and tiles without
+ * present ancestor are never deleted, so coarse ancestors keep covering
+ * evicted regions. Only loose tile files are
+ * deleted, packs count to the usage but stay intact. Tiles never accessed are
+ * aged by modification time of their files.<br><br>
+ * Store is thread-safe and shares the lock of the repository with writers of
+ * {@link ElevationMap}, so several processes may trim the same repository.<br><br>
+ * <h5>Layout of the side index (little-endian):</h5>
+ * <pre>
+ * offset  type    content
+ *      0  int     magic number {@link #MAGIC}
+ *      4  short   format version
+ *      6  short   reserved
+ *      8  int     count of entries
+ *     12  entry[] long key of tile, see {@link TileKey}, int last access in
+ *                 seconds since the epoch (unsigned)
+ * </pre>
+ */
+public class TileStore {
+    /**
+     * Magic number at the beginning of the side index ("ELVA" in file).
+     */
+    public final static int MAGIC = 0x41564C45;
+
+    /**
+     * Current version of the side index format.
+     */
+    public final static short VERSION = 1;
+
+    /**
+     * Name of the side index file in the repository.
+     */
+    public final static String FILE_NAME = "tiles.access";
+
+    /**
+     * Deepest level of tiles kept regardless of the budget by default.
+     */
+    public final static byte DEFAULT_KEPT_DEPTH = 6;
+
+    /**
+     * Seconds within which repeated access of a tile is not recorded again.
+     */
+    private final static long ACCESS_RESOLUTION = 60;
+
+    private final static int HEADER_SIZE = 12;
+
+    private final static int ENTRY_SIZE = 12;
+
+    /**
+     * Root of the repository
+     */
+    private final File repository;
+
+    /**
+     * Maximum bytes of tile files and packs
+     */
+    private volatile long budget;
+
+    /**
+     * Deepest level of tiles never evicted
+     */
+    private volatile byte keptDepth = DEFAULT_KEPT_DEPTH;
+
+    /**
+     * Last access of tiles in seconds since the epoch
+     */
+    private final ConcurrentHashMap<Long, Long> accesses = new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * Will create store of given repository limited by given budget and read
+     * its side index.
+     *
+     * @param repository root of the repository
+     * @param budget     maximum bytes of tile files and packs
+     * @throws IOException in case the side index cannot be read
+     */
+    public TileStore(File repository, long budget) throws IOException {
+        this.repository = repository;
+        setBudget(budget);
+        accesses.putAll(loadIndex());
+    }
+
+    /**
+     * Will record access of tile of given key now.
+     *
+     * @param key of the tile, see {@link TileKey}
+     */
+    public void recordAccess(long key) {
+        long now = System.currentTimeMillis() / 1000;
+        Long last = accesses.get(key);
+        //frequent lookups of hot tiles do not churn the map
+        if (last == null || last + ACCESS_RESOLUTION <= now) {
+            accesses.put(key, now);
+        }
+    }
+
+    /**
+     * @param key of the tile, see {@link TileKey}
+     * @return last recorded access in milliseconds since the epoch or zero if
+     * the access of the tile is not tracked
+     */
+    public long getLastAccess(long key) {
+        Long last = accesses.get(key);
+        return last != null ? last * 1000 : 0;
+    }
+
+    /**
+     * Will write recorded accesses to the side index, merged with accesses
+     * saved by other processes meanwhile.
+     *
+     * @throws IOException in case the repository cannot be locked or the side
+     *                     index written
+     */
+    public void save() throws IOException {
+        FileLock lock = TileManifest.lock(repository);
+        try {
+            writeIndex(null);
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * Will read the side index of the repository.
+     *
+     * @return last access of tiles by their keys, empty if there is no index
+     * @throws IOException in case the index cannot be read
+     */
+    private Map<Long, Long> loadIndex() throws IOException {
+        Map<Long, Long> loaded = new HashMap<Long, Long>();
+        File file = new File(repository, FILE_NAME);
+        if (!file.exists()) {
+            return loaded;
+        }
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (index.remaining() < HEADER_SIZE || index.getInt() != MAGIC) {
+            throw new IOException("Invalid tile access index '" + file + "'!");
+        }
+        if (index.getShort() != VERSION) {
+            throw new IOException("Unsupported version of tile access index '" + file + "'!");
+        }
+        index.getShort();
+        int count = index.getInt();
+        if (index.remaining() < ((long) count) * ENTRY_SIZE) {
+            throw new IOException("Truncated tile access index '" + file + "'!");
+        }
+        for (int i = 0; i < count; i++) {
+            loaded.put(index.getLong(), index.getInt() & 0xFFFFFFFFL);
+        }
+        return loaded;
+    }
+
+    /**
+     * Will merge the side index with recorded accesses and write it back,
+     * temporary file is moved in place afterwards. Caller has to hold lock of
+     * the repository.
+     *
+     * @param present keys of tiles present in the repository, accesses of
+     *                others are dropped, <code>null</code> to keep all
+     */
+    private void writeIndex(NavigableSet<Long> present) throws IOException {
+        Map<Long, Long> merged;
+        try {
+            merged = loadIndex();
+        } catch (IOException e) {
+            Logger.logWarning("Failed to read tile access index of '" + repository + "', it is rewritten!", e);
+            merged = new HashMap<Long, Long>();
+        }
+        for (Map.Entry<Long, Long> access : accesses.entrySet()) {
+            Long saved = merged.get(access.getKey());
+            if (saved == null || saved < access.getValue()) {
+                merged.put(access.getKey(), access.getValue());
+            }
+        }
+        if (present != null) {
+            merged.keySet().retainAll(present);
+            accesses.keySet().retainAll(present);
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + merged.size() * ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(MAGIC);
+        index.putShort(VERSION);
+        index.putShort((short) 0);
+        index.putInt(merged.size());
+        for (Map.Entry<Long, Long> access : merged.entrySet()) {
+            index.putLong(access.getKey());
+            index.putInt((int) (long) access.getValue());
+        }
+        index.flip();
+
+        File temporary = new File(repository, FILE_NAME + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+        } finally {
+            raf.close();
+        }
+        Files.move(temporary.toPath(), new File(repository, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Will measure current usage of the repository.
+     *
+     * @return usage of the repository
+     * @throws IOException in case the layout of the repository cannot be read
+     */
+    public Usage getUsage() throws IOException {
+        Usage usage = new Usage(budget);
+        for (List<File> files : listTiles(TileLayout.detect(repository)).values()) {
+            usage.tileCount++;
+            for (File file : files) {
+                usage.tileBytes += file.length();
+            }
+        }
+        for (File pack : listPacks()) {
+            usage.packCount++;
+            usage.packBytes += pack.length();
+        }
+        return usage;
+    }
+
+    /**
+     * Will delete least recently used leaf tiles until the repository meets
+     * the budget, see {@link TileStore}. Versioned tiles deleted are withdrawn
+     * from the manifest of the repository, readers of older generation fall
+     * back to ancestors of them. Side index is saved afterwards.
+     *
+     * @return keys of deleted tiles in order of eviction
+     * @throws IOException in case the repository cannot be locked, its
+     *                     manifest or packs read or the side index written
+     */
+    public List<Long> trim() throws IOException {
+        List<Long> evicted = new ArrayList<Long>();
+        FileLock lock = TileManifest.lock(repository);
+        try {
+            final TreeMap<Long, List<File>> tiles = listTiles(TileLayout.detect(repository));
+            TileManifest manifest = TileManifest.load(repository);
+
+            //usage and tiles the leaves are looked up among
+            long used = 0;
+            for (List<File> files : tiles.values()) {
+                for (File file : files) {
+                    used += file.length();
+                }
+            }
+            final NavigableSet<Long> present = new TreeSet<Long>(tiles.keySet());
+            present.addAll(manifest.getVersions().keySet());
+            for (File file : listPacks()) {
+                used += file.length();
+                TilePack pack = new TilePack(file);
+                try {
+                    for (int entry = 0; entry < pack.getCount(); entry++) {
+                        present.add(pack.getKey(entry));
+                    }
+                } finally {
+                    pack.close();
+                }
+            }
+
+            if (used > budget) {
+                //least recently used leaves first, parents may become leaves
+                final Map<Long, Long> ages = new HashMap<Long, Long>();
+                PriorityQueue<Long> leaves = new PriorityQueue<Long>(16, new Comparator<Long>() {
+                    @Override
+                    public int compare(Long first, Long second) {
+                        return Long.compare(ages.get(first), ages.get(second));
+                    }
+                });
+                for (Map.Entry<Long, List<File>> tile : tiles.entrySet()) {
+                    if (isEvictable(tile.getKey(), tiles, present)) {
+                        ages.put(tile.getKey(), getAge(tile.getKey(), tile.getValue()));
+                        leaves.add(tile.getKey());
+                    }
+                }
+
+                List<Long> withdrawn = new ArrayList<Long>();
+                while (used > budget && !leaves.isEmpty()) {
+                    long key = leaves.poll();
+                    for (File file : tiles.remove(key)) {
+                        long length = file.length();
+                        if (file.delete()) {
+                            used -= length;
+                        } else {
+                            Logger.logWarning("Failed to delete tile file '" + file + "'!");
+                        }
+                    }
+                    present.remove(key);
+                    evicted.add(key);
+                    if (manifest.getVersions().containsKey(key)) {
+                        withdrawn.add(key);
+                    }
+
+                    long parent = TileKey.getParent(key);
+                    if (parent >= 0 && !ages.containsKey(parent) && isEvictable(parent, tiles, present)) {
+                        ages.put(parent, getAge(parent, tiles.get(parent)));
+                        leaves.add(parent);
+                    }
+                }
+                if (!withdrawn.isEmpty()) {
+                    manifest.withdraw(repository, withdrawn);
+                }
+                if (TileLayout.detect(repository) == TileLayout.SHARDED) {
+                    TileLayout.deleteEmptyShards(repository);
+                }
+            }
+
+            //tiles gone meanwhile are not tracked further
+            writeIndex(present);
+        } finally {
+            lock.channel().close();
+        }
+        return evicted;
+    }
+
+    /**
+     * @return true if tile of given key is loose tile below the kept depth
+     * without present descendants, covered by a present ancestor
+     */
+    private boolean isEvictable(long key, TreeMap<Long, List<File>> tiles, NavigableSet<Long> present) {
+        if (TileKey.getDepth(key) <= keptDepth || !tiles.containsKey(key)
+                || !present.subSet(key, false, TileKey.getSubtreeEnd(key), true).isEmpty()) {
+            return false;
+        }
+        //the coarsest tile of its region is kept at any depth
+        for (long ancestor = TileKey.getParent(key); ancestor >= 0; ancestor = TileKey.getParent(ancestor)) {
+            if (present.contains(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return last access of given tile in seconds since the epoch, last
+     * modification of its files if the access is not tracked
+     */
+    private long getAge(long key, List<File> files) {
+        Long last = accesses.get(key);
+        if (last != null) {
+            return last;
+        }
+        long modified = 0;
+        for (File file : files) {
+            modified = Math.max(modified, file.lastModified() / 1000);
+        }
+        return modified;
+    }
+
+    /**
+     * Will list files of loose tiles of the repository in any format,
+     * including all versions of versioned tiles.
+     *
+     * @param layout of tile directories of the repository
+     * @return files of tiles by their keys
+     */
+    private TreeMap<Long, List<File>> listTiles(TileLayout layout) {
+        TreeMap<Long, List<File>> tiles = new TreeMap<Long, List<File>>();
+        for (File directory : layout.getDirectories(repository)) {
+            String[] names = directory.list();
+            for (String name : names != null ? names : new String[0]) {
+                Matcher matcher = TileLayout.TILE_FILE_PATTERN.matcher(name);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                long key = TileKey.getKey(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                        Byte.parseByte(matcher.group(3)));
+                List<File> files = tiles.get(key);
+                if (files == null) {
+                    files = new ArrayList<File>();
+                    tiles.put(key, files);
+                }
+                files.add(new File(directory, name));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return pack files in the root of the repository
+     */
+    private List<File> listPacks() {
+        List<File> packs = new ArrayList<File>();
+        File[] files = repository.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            if (file.isFile() && file.getName().endsWith("." + TilePack.EXTENSION)) {
+                packs.add(file);
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * @return root of the repository
+     */
+    public File getRepository() {
+        return repository;
+    }
+
+    /**
+     * Will change the budget, tiles are evicted by next {@link #trim()}.
+     *
+     * @param budget maximum bytes of tile files and packs
+     */
+    public void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Invalid budget of tile store " + budget + "!");
+        }
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param keptDepth deepest level of tiles never evicted
+     */
+    public void setKeptDepth(byte keptDepth) {
+        this.keptDepth = keptDepth;
+    }
+
+    public byte getKeptDepth() {
+        return keptDepth;
+    }
+
+    @Override
+    public String toString() {
+        return "TileStore " + repository + " (" + accesses.size() + " tracked tiles, budget " + budget + " bytes)";
+    }
+
+    /**
+     * Usage of the repository measured by {@link #getUsage()}.
+     */
+    public static class Usage {
+        private final long budget;
+        private long tileBytes;
+        private int tileCount;
+        private long packBytes;
+        private int packCount;
+
+        private Usage(long budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * @return bytes of loose tile files
+         */
+        public long getTileBytes() {
+            return tileBytes;
+        }
+
+        /**
+         * @return count of loose tiles
+         */
+        public int getTileCount() {
+            return tileCount;
+        }
+
+        /**
+         * @return bytes of packs
+         */
+        public long getPackBytes() {
+            return packBytes;
+        }
+
+        public int getPackCount() {
+            return packCount;
+        }
+
+        /**
+         * @return bytes counted to the budget
+         */
+        public long getUsedBytes() {
+            return tileBytes + packBytes;
+        }
+
+        public long getBudget() {
+            return budget;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d tiles (%d bytes), %d packs (%d bytes), %.1f%% of budget %d bytes",
+                    tileCount, tileBytes, packCount, packBytes,
+                    budget > 0 ? 100.0 * getUsedBytes() / budget : 0.0, budget);
+        }
+    }
+}
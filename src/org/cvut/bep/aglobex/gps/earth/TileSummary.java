@@ -0,0 +1,262 @@
+package org.cvut.bep.aglobex.gps.earth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This class represents pyramid of minimum, maximum and mean elevations of a
+ * tile. Level zero divides the tile into cells of {@link #CELL_SIZE} samples,
+ * every next level merges two by two cells of previous one, and the last level
+ * has single cell covering whole tile. Cells without any data hold NaN.<br><br>
+ * <h5>Layout (little-endian):</h5>
+ * <pre>
+ * int      cell size of level zero
+ * int      count of levels
+ * float[]  for every level minimums, maximums and means of its cells in
+ *          row-major order
+ * </pre>
+ * Summary is stored after samples of {@link TileFormat} records and read
+ * directly from the record.
+ */
+public final class TileSummary {
+    /**
+     * Size of the cells of level zero in samples
+     */
+    public final static int CELL_SIZE = 16;
+
+    /**
+     * Buffer with the summary at position zero
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Cell size of level zero
+     */
+    private final int cellSize;
+
+    /**
+     * Count of cells along one side for every level
+     */
+    private final int[] cellsPerSide;
+
+    /**
+     * Byte offset of minimums of every level, maximums and means follow
+     */
+    private final int[] levelOffsets;
+
+    /**
+     * Will wrap summary stored in given buffer.
+     *
+     * @param buffer     with the summary at position zero
+     * @param resolution of the summarized tile
+     */
+    public TileSummary(ByteBuffer buffer, int resolution) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.cellSize = buffer.getInt(0);
+        this.cellsPerSide = getCellsPerSide(resolution, cellSize);
+        assert (buffer.getInt(4) == cellsPerSide.length);
+        this.levelOffsets = new int[cellsPerSide.length];
+        int offset = 8;
+        for (int level = 0; level < cellsPerSide.length; level++) {
+            levelOffsets[level] = offset;
+            offset += 12 * cellsPerSide[level] * cellsPerSide[level];
+        }
+    }
+
+    /**
+     * Will calculate count of cells along one side for every level.
+     *
+     * @param resolution of the tile
+     * @param cellSize   of level zero
+     * @return array indexed by level
+     */
+    private static int[] getCellsPerSide(int resolution, int cellSize) {
+        int levels = 1;
+        for (int cells = (resolution + cellSize - 1) / cellSize; cells > 1; cells = (cells + 1) / 2) {
+            levels++;
+        }
+        int[] cellsPerSide = new int[levels];
+        cellsPerSide[0] = (resolution + cellSize - 1) / cellSize;
+        for (int level = 1; level < levels; level++) {
+            cellsPerSide[level] = (cellsPerSide[level - 1] + 1) / 2;
+        }
+        return cellsPerSide;
+    }
+
+    /**
+     * Will calculate size of summary of tile in given resolution.
+     *
+     * @param resolution of the tile
+     * @return size in bytes
+     */
+    public static int getSize(int resolution) {
+        int size = 8;
+        for (int cells : getCellsPerSide(resolution, CELL_SIZE)) {
+            size += 12 * cells * cells;
+        }
+        return size;
+    }
+
+    /**
+     * Will calculate summary of given samples and write it to given buffer at
+     * its current position.
+     *
+     * @param target     buffer with at least {@link #getSize(int)} bytes remaining
+     * @param samples    in row-major order
+     * @param resolution of the tile
+     */
+    public static void write(ByteBuffer target, double[] samples, int resolution) {
+        int[] cellsPerSide = getCellsPerSide(resolution, CELL_SIZE);
+        ByteBuffer summary = target.slice().order(ByteOrder.LITTLE_ENDIAN);
+        summary.putInt(CELL_SIZE);
+        summary.putInt(cellsPerSide.length);
+
+        //level zero out of samples
+        int cells = cellsPerSide[0];
+        double[] min = new double[cells * cells];
+        double[] max = new double[cells * cells];
+        double[] sum = new double[cells * cells];
+        int[] count = new int[cells * cells];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (int y = 0; y < resolution; y++) {
+            int row = (y / CELL_SIZE) * cells;
+            for (int x = 0; x < resolution; x++) {
+                double value = samples[y * resolution + x];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                int cell = row + x / CELL_SIZE;
+                min[cell] = Math.min(min[cell], value);
+                max[cell] = Math.max(max[cell], value);
+                sum[cell] += value;
+                count[cell]++;
+            }
+        }
+        putLevel(summary, min, max, sum, count);
+
+        //every other level out of previous one
+        for (int level = 1; level < cellsPerSide.length; level++) {
+            int previousCells = cells;
+            cells = cellsPerSide[level];
+            double[] levelMin = new double[cells * cells];
+            double[] levelMax = new double[cells * cells];
+            double[] levelSum = new double[cells * cells];
+            int[] levelCount = new int[cells * cells];
+            Arrays.fill(levelMin, Double.POSITIVE_INFINITY);
+            Arrays.fill(levelMax, Double.NEGATIVE_INFINITY);
+            for (int y = 0; y < previousCells; y++) {
+                for (int x = 0; x < previousCells; x++) {
+                    int child = y * previousCells + x;
+                    int cell = (y / 2) * cells + x / 2;
+                    levelMin[cell] = Math.min(levelMin[cell], min[child]);
+                    levelMax[cell] = Math.max(levelMax[cell], max[child]);
+                    levelSum[cell] += sum[child];
+                    levelCount[cell] += count[child];
+                }
+            }
+            min = levelMin;
+            max = levelMax;
+            sum = levelSum;
+            count = levelCount;
+            putLevel(summary, min, max, sum, count);
+        }
+
+        target.position(target.position() + summary.position());
+    }
+
+    /**
+     * Will put single level of summary to given buffer. Minimums and maximums
+     * are rounded outwards, so they never underestimate the range.
+     */
+    private static void putLevel(ByteBuffer summary, double[] min, double[] max, double[] sum, int[] count) {
+        for (int cell = 0; cell < min.length; cell++) {
+            float value = (float) min[cell];
+            summary.putFloat(count[cell] > 0 ? (value > min[cell] ? Math.nextDown(value) : value) : Float.NaN);
+        }
+        for (int cell = 0; cell < max.length; cell++) {
+            float value = (float) max[cell];
+            summary.putFloat(count[cell] > 0 ? (value < max[cell] ? Math.nextUp(value) : value) : Float.NaN);
+        }
+        for (int cell = 0; cell < sum.length; cell++) {
+            summary.putFloat(count[cell] > 0 ? (float) (sum[cell] / count[cell]) : Float.NaN);
+        }
+    }
+
+    /**
+     * Will build summary of given samples on heap.
+     *
+     * @param samples    in row-major order
+     * @param resolution of the tile
+     * @return new summary
+     */
+    public static TileSummary build(double[] samples, int resolution) {
+        ByteBuffer buffer = ByteBuffer.allocate(getSize(resolution));
+        write(buffer, samples, resolution);
+        return new TileSummary(buffer, resolution);
+    }
+
+    /**
+     * Will copy this summary to its own heap buffer, e.g. to release record
+     * it was read from.
+     *
+     * @return new summary of same cells
+     */
+    TileSummary copy() {
+        int last = cellsPerSide.length - 1;
+        int size = levelOffsets[last] + 12 * cellsPerSide[last] * cellsPerSide[last];
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(0).limit(size);
+        ByteBuffer target = ByteBuffer.allocate(size);
+        target.put(copy);
+        target.flip();
+        return new TileSummary(target, cellsPerSide[0] * cellSize);
+    }
+
+    /**
+     * @return count of levels, the last one has single cell
+     */
+    public int getLevels() {
+        return cellsPerSide.length;
+    }
+
+    /**
+     * @param level of the pyramid
+     * @return count of cells along one side of given level
+     */
+    public int getCellsPerSide(int level) {
+        return cellsPerSide[level];
+    }
+
+    /**
+     * @param level of the pyramid
+     * @return count of samples along one side of cell of given level
+     */
+    public int getCellSize(int level) {
+        return cellSize << level;
+    }
+
+    /**
+     * @return minimum elevation of cell in meters or NaN if it has no data
+     */
+    public double getMinimum(int level, int cellX, int cellY) {
+        return buffer.getFloat(levelOffsets[level] + 4 * (cellY * cellsPerSide[level] + cellX));
+    }
+
+    /**
+     * @return maximum elevation of cell in meters or NaN if it has no data
+     */
+    public double getMaximum(int level, int cellX, int cellY) {
+        int cells = cellsPerSide[level] * cellsPerSide[level];
+        return buffer.getFloat(levelOffsets[level] + 4 * (cells + cellY * cellsPerSide[level] + cellX));
+    }
+
+    /**
+     * @return mean elevation of cell in meters or NaN if it has no data
+     */
+    public double getMean(int level, int cellX, int cellY) {
+        int cells = cellsPerSide[level] * cellsPerSide[level];
+        return buffer.getFloat(levelOffsets[level] + 4 * (2 * cells + cellY * cellsPerSide[level] + cellX));
+    }
+}
@@ -1,19 +1,33 @@
 package org.cvut.bep.maps;
 
+import org.cvut.bep.aglobex.gps.earth.ElevationTile;
+import org.cvut.bep.aglobex.gps.earth.TileFormat;
+import org.cvut.bep.aglobex.gps.earth.TileLayout;
+import org.cvut.bep.aglobex.gps.earth.TilePack;
+import org.cvut.bep.aglobex.gps.earth.TileScheme;
+
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
 
@@ -25,6 +39,13 @@ import javax.imageio.ImageIO;
  * @author Kaiser Vojtech
  */
 public class ElevationMapConvertor {
+    /**
+     * Name pattern of binary tiles written by {@link #exportTile} before
+     * {@link TileFormat} was introduced. Groups are latitude index, longitude
+     * index and depth.
+     */
+    private final static Pattern LEGACY_TILE_PATTERN = Pattern.compile("data_(\\d+)_(\\d+)_(\\d+)\\.bin");
+
     public static void main(String[] args) throws IOException {
         convertBinaryElevationMap(new File("/Users/janzaloudek/Library/Containers/com.apple.mail/Data/Library/Mail Downloads/BB2E169B-1076-42E6-91B5-B9EC7599A3F7/obora_zidlov/data/"), false, false);
     }
@@ -67,10 +88,142 @@ public class ElevationMapConvertor {
         }
     }
 
+    /**
+     * Will convert all binary tiles of serialized doubles found in given root
+     * directory or file into {@link TileFormat} files placed next to them.
+     * Files not matching the naming scheme of {@link #exportTile} are skipped.
+     *
+     * @param root   file or directory to be recursively searched and converted
+     * @param delete true in case source binary files should be deleted
+     * @throws IOException thrown in case of file save errors
+     */
+    public static void convertLegacyTiles(File root, boolean delete) throws IOException {
+        convertLegacyTiles(root, delete, TileFormat.SampleType.FLOAT64);
+    }
+
+    /**
+     * Will convert all binary tiles of serialized doubles found in given root
+     * directory or file into {@link TileFormat} files with given sample type.
+     *
+     * @param root   file or directory to be recursively searched and converted
+     * @param delete true in case source binary files should be deleted
+     * @param type   of samples in converted tiles
+     * @throws IOException thrown in case of file save errors
+     */
+    public static void convertLegacyTiles(File root, boolean delete, TileFormat.SampleType type) throws IOException {
+        Queue<File> toProcess = new LinkedList<>();
+        toProcess.add(root);
+        while (!toProcess.isEmpty()) {
+            File current = toProcess.poll();
+            if (current.isDirectory()) {
+                toProcess.addAll(Arrays.asList(current.listFiles()));
+                System.out.println("> Explore " + current);
+                continue;
+            }
+
+            Matcher matcher = LEGACY_TILE_PATTERN.matcher(current.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            int idxLatitude = Integer.parseInt(matcher.group(1));
+            int idxLongitude = Integer.parseInt(matcher.group(2));
+            byte depth = Byte.parseByte(matcher.group(3));
+
+            System.out.println("> converting " + current);
+            double[][] data;
+            try {
+                data = loadLegacyTile(current);
+            } catch (IOException e) {
+                System.out.println("> skipping " + current + " (" + e.getMessage() + ")");
+                continue;
+            }
+            TileFormat.write(new File(current.getParentFile(), TileFormat.getFileName(idxLatitude, idxLongitude, depth)),
+                    idxLatitude, idxLongitude, depth, data, type);
+            if (delete) {
+                current.delete();
+            }
+        }
+    }
+
+    /**
+     * Will pack all tiles found in given folder in its {@link TileLayout}
+     * into single {@link TilePack} file. Legacy binary tiles are converted
+     * first.
+     *
+     * @param folder   containing the tiles
+     * @param packFile to be written
+     * @throws IOException thrown in case of file load or save errors
+     */
+    public static void packTiles(File folder, File packFile) throws IOException {
+        for (File directory : TileLayout.detect(folder).getDirectories(folder)) {
+            File[] legacy = directory.listFiles();
+            if (legacy == null) {
+                continue;
+            }
+            for (File file : legacy) {
+                if (file.isFile() && LEGACY_TILE_PATTERN.matcher(file.getName()).matches()) {
+                    convertLegacyTiles(file, false);
+                }
+            }
+        }
+        int count = TilePack.build(folder, packFile);
+        System.out.println("> packed " + count + " tiles into " + packFile);
+    }
+
+    /**
+     * Will move all tiles of given folder into given {@link TileLayout}, see
+     * {@link TileLayout#migrate(File, int)}.
+     *
+     * @param folder  containing the tiles
+     * @param layout  to be used by the folder
+     * @param threads count of moving threads
+     * @throws IOException thrown in case some file cannot be moved
+     */
+    public static void migrateLayout(File folder, TileLayout layout, int threads) throws IOException {
+        int count = layout.migrate(folder, threads);
+        System.out.println("> moved " + count + " files of " + folder + " into " + layout + " layout");
+    }
+
+    /**
+     * Will load square tile of serialized doubles. Resolution is derived from
+     * the count of stored values.
+     *
+     * @param source file written by {@link #exportTile}
+     * @return loaded data with indexing [x][y]
+     * @throws IOException in case of read errors or non square tile
+     */
+    public static double[][] loadLegacyTile(File source) throws IOException {
+        List<Double> values = new ArrayList<>();
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(source)));
+        try {
+            while (true) {
+                values.add(ois.readDouble());
+            }
+        } catch (EOFException e) {
+            //all values read
+        } finally {
+            ois.close();
+        }
+
+        int sampleCount = (int) Math.round(Math.sqrt(values.size()));
+        if (sampleCount == 0 || sampleCount * sampleCount != values.size()) {
+            throw new IOException("tile with " + values.size() + " values is not square");
+        }
+
+        double[][] data = new double[sampleCount][sampleCount];
+        for (int y = 0; y < sampleCount; y++) {
+            for (int x = 0; x < sampleCount; x++) {
+                data[x][y] = values.get(y * sampleCount + x);
+            }
+        }
+        return data;
+    }
+
     /**
      * Will export the tile as binary and text representation along with coordinates
      * stored in separate file. These files are named using quad tree indices
-     * and depth.
+     * and depth. The tile is also stored in {@link TileFormat}, which is
+     * the format {@link org.cvut.bep.aglobex.gps.earth.ElevationMap} prefers.
      *
      * @param idxLatitude  of the tile
      * @param idxLongitude of the tile
@@ -81,9 +234,85 @@ public class ElevationMapConvertor {
      */
     public static void exportTile(int idxLatitude, int idxLongitude, byte depth,
                                   double[][] data, String path) throws IOException {
-        assert (data.length != 0 && data.length == data[0].length);
-        int sampleCount = data.length;
-        System.out.println("sample count " + sampleCount);
+        exportTile(idxLatitude, idxLongitude, depth, data, path, TileFormat.SampleType.FLOAT64);
+    }
+
+    /**
+     * Will export the tile same way as {@link #exportTile(int, int, byte, double[][], String)},
+     * storing samples of the mapped representation in given type. Use
+     * {@link TileFormat.SampleType#INT16} for quantized tiles.
+     *
+     * @param idxLatitude  of the tile
+     * @param idxLongitude of the tile
+     * @param depth        in the quad tree
+     * @param data         to be stored
+     * @param path         to have the files stored
+     * @param type         of samples in the mapped representation
+     * @throws IOException in case of failure while writing the files
+     */
+    public static void exportTile(int idxLatitude, int idxLongitude, byte depth,
+                                  double[][] data, String path, TileFormat.SampleType type) throws IOException {
+        exportTile(idxLatitude, idxLongitude, depth, data, path, type, 0);
+    }
+
+    /**
+     * Will export the tile same way as {@link #exportTile(int, int, byte, double[][], String)},
+     * storing the mapped representation with given sample type and split into
+     * blocks of given size. Blocks containing only NaN values (no data) are
+     * stored as absent.
+     *
+     * @param idxLatitude  of the tile
+     * @param idxLongitude of the tile
+     * @param depth        in the quad tree
+     * @param data         to be stored
+     * @param path         to have the files stored, files are placed in its
+     *                     {@link TileLayout} and the mapped representation
+     *                     is narrowed by its {@link TileScheme}
+     * @param type         of samples in the mapped representation
+     * @param blockSize    of the mapped representation, zero for contiguous
+     *                     tile or block size not dividing width of the tile
+     * @throws IOException in case of failure while writing the files
+     */
+    public static void exportTile(int idxLatitude, int idxLongitude, byte depth,
+                                  double[][] data, String path, TileFormat.SampleType type,
+                                  int blockSize) throws IOException {
+        exportTile(idxLatitude, idxLongitude, depth, data, path, type, blockSize,
+                TileLayout.detect(new File(path)), TileScheme.detect(new File(path)));
+    }
+
+    /**
+     * Will export the tile same way as
+     * {@link #exportTile(int, int, byte, double[][], String, TileFormat.SampleType, int)}
+     * using given layout and scheme of the path, so exports of many tiles
+     * detect them just once.
+     *
+     * @param idxLatitude  of the tile
+     * @param idxLongitude of the tile
+     * @param depth        in the quad tree
+     * @param data         to be stored
+     * @param path         to have the files stored
+     * @param type         of samples in the mapped representation
+     * @param blockSize    of the mapped representation, zero for contiguous
+     *                     tile or block size not dividing width of the tile
+     * @param layout       of the path, see {@link TileLayout#detect(File)}
+     * @param scheme       of the path, see {@link TileScheme#detect(File)}
+     * @throws IOException in case of failure while writing the files
+     */
+    public static void exportTile(int idxLatitude, int idxLongitude, byte depth,
+                                  double[][] data, String path, TileFormat.SampleType type,
+                                  int blockSize, TileLayout layout, TileScheme scheme) throws IOException {
+        assert (data.length != 0 && data.length <= data[0].length);
+        int sampleCount = data[0].length;
+        System.out.println("sample count " + data.length + "x" + sampleCount);
+
+        //mapped representation takes at most width of the scheme, other
+        //representations stay square
+        int width = Math.min(data.length, scheme.getWidth(idxLatitude, depth, sampleCount));
+        double[][] mapped = resampleColumns(data, width);
+        data = resampleColumns(data, sampleCount);
+        if (blockSize != 0 && width % blockSize != 0) {
+            blockSize = 0;
+        }
         BufferedWriter bw;
 
         //calculate min, max latlong
@@ -95,6 +324,12 @@ public class ElevationMapConvertor {
         double minLongitude = idxLongitude * degreesPerTile - 180;
         double maxLongitude = (idxLongitude + 1) * degreesPerTile - 180;
 
+        //all files of the tile go to its directory in layout of the repository
+        File directory = layout.getDirectory(new File(path), idxLatitude, idxLongitude, depth);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create tile directory '" + directory + "'!");
+        }
+
         //write text representation
         StringBuilder sb = new StringBuilder();
         for (int y = 0; y < sampleCount; y++) {
@@ -104,14 +339,14 @@ public class ElevationMapConvertor {
             }
             sb.append('\n');
         }
-        bw = new BufferedWriter(new FileWriter(new File(
-                path + "/data_" + idxLatitude + "_" + idxLongitude + "_" + depth + ".txt")));
+        bw = new BufferedWriter(new FileWriter(new File(directory,
+                "data_" + idxLatitude + "_" + idxLongitude + "_" + depth + ".txt")));
         bw.write(sb.toString());
         bw.close();
 
         //write binary representation
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(new File(
-                path + "/data_" + idxLatitude + "_" + idxLongitude + "_" + depth + ".bin")));
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(new File(directory,
+                "data_" + idxLatitude + "_" + idxLongitude + "_" + depth + ".bin")));
         for (int y = 0; y < sampleCount; y++) {
             for (int x = 0; x < sampleCount; x++) {
                 oos.writeDouble(data[x][y]);
@@ -119,9 +354,13 @@ public class ElevationMapConvertor {
         }
         oos.close();
 
+        //write mapped representation
+        TileFormat.write(new File(directory, TileFormat.getFileName(idxLatitude, idxLongitude, depth)),
+                idxLatitude, idxLongitude, depth, ElevationTile.toSamples(mapped), width, sampleCount, type, blockSize);
+
         //write coordinates
-        bw = new BufferedWriter(new FileWriter(new File(
-                String.format(path + "/coords_%d_%d_%d.txt", idxLatitude, idxLongitude, depth))));
+        bw = new BufferedWriter(new FileWriter(new File(directory,
+                String.format("coords_%d_%d_%d.txt", idxLatitude, idxLongitude, depth))));
         bw.write(minLongitude + "\n");
         bw.write(maxLongitude + "\n");
         bw.write(minLatitude + "\n");
@@ -129,6 +368,26 @@ public class ElevationMapConvertor {
         bw.close();
     }
 
+    /**
+     * Will resample columns of given array indexed [x][y] to given count,
+     * every column takes the nearest column of the array.
+     *
+     * @param data  array of samples
+     * @param width count of columns
+     * @return given array if it has the count of columns already, new array
+     * otherwise
+     */
+    private static double[][] resampleColumns(double[][] data, int width) {
+        if (data.length == width) {
+            return data;
+        }
+        double[][] resampled = new double[width][];
+        for (int x = 0; x < width; x++) {
+            resampled[x] = data[(int) Math.min(data.length - 1, (2L * x * data.length + width) / (2L * width))];
+        }
+        return resampled;
+    }
+
     /**
      * Will build 24 bit RGB height map out of given array of data. Indexing in
      * given array is expected to be [x][y].
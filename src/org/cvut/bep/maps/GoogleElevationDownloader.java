@@ -331,7 +331,27 @@ public class GoogleElevationDownloader {
      * @throws LimitExceededException
      */
     public double[][] getElevationMapTile(int idxLatitude, int idxLongitude, byte depth, int sampleCount) throws LimitExceededException {
-        double[][] retVal = new double[sampleCount][sampleCount];
+        return getElevationMapTile(idxLatitude, idxLongitude, depth, sampleCount, sampleCount);
+    }
+
+    /**
+     * Will load from google maps API elevation at points on given tile with
+     * given count of samples per row, see
+     * {@link #getElevationMapTile(int, int, byte, int)}. Narrow tiles of
+     * {@link org.cvut.bep.aglobex.gps.earth.TileScheme#ADAPTIVE} repository
+     * take fewer samples from the API.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param width        samples per row
+     * @param sampleCount  samples per column
+     * @return array of values indexed [x][y] of dimensions width and sampleCount
+     * @throws LimitExceededException
+     */
+    public double[][] getElevationMapTile(int idxLatitude, int idxLongitude, byte depth, int width,
+                                          int sampleCount) throws LimitExceededException {
+        double[][] retVal = new double[width][sampleCount];
 
         //calculate min, max latlong
         double degreesPerTile = 180.0 / (1 << depth);
@@ -340,15 +360,15 @@ public class GoogleElevationDownloader {
         double minLongitude = idxLongitude * degreesPerTile - 180;
         double maxLongitude = (idxLongitude + 1) * degreesPerTile - 180;
 
-        System.out.println("Downloading tile [" + idxLatitude + ", " + idxLongitude + "] depth: " + depth + " /" + sampleCount);
+        System.out.println("Downloading tile [" + idxLatitude + ", " + idxLongitude + "] depth: " + depth + " /" + width + "x" + sampleCount);
 
         //for each row
         for (int y = 0; y < sampleCount; y++) {
             System.out.print("\rRows " + y + " of " + sampleCount + " fetched");
             //load data from google in JSON form
             double offset = degreesPerSample * y;
-            String key = String.format("%f_%f_%f_%f_%d", minLatitude - offset, minLongitude, minLatitude - offset, maxLongitude, sampleCount);
-            URL url = getElevationPathURL(minLatitude - offset, minLongitude, minLatitude - offset, maxLongitude, sampleCount);
+            String key = getRowKey(minLatitude - offset, minLongitude, maxLongitude, width);
+            URL url = getElevationPathURL(minLatitude - offset, minLongitude, minLatitude - offset, maxLongitude, width);
             String data = getElevationData(url, key);
             if (data == null) {
                 continue;
@@ -373,6 +393,63 @@ public class GoogleElevationDownloader {
         return retVal;
     }
 
+    /**
+     * Will construct cache key of single row of samples of a tile.
+     *
+     * @param latitude     of the row in degrees
+     * @param minLongitude in degrees
+     * @param maxLongitude in degrees
+     * @param sampleCount  in the row
+     * @return key in the cache
+     */
+    private String getRowKey(double latitude, double minLongitude, double maxLongitude, int sampleCount) {
+        return String.format("%f_%f_%f_%f_%d", latitude, minLongitude, latitude, maxLongitude, sampleCount);
+    }
+
+    /**
+     * Will delete cached JSON files of rows of given tile, e.g. once the tile
+     * is exported and the rows would be fetched again only after the tile is
+     * evicted from its repository. Rows of partially downloaded tile should
+     * be kept, so the download resumes without requests.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param sampleCount  on both axes
+     * @return count of deleted files
+     */
+    public int dropCachedTile(int idxLatitude, int idxLongitude, byte depth, int sampleCount) {
+        return dropCachedTile(idxLatitude, idxLongitude, depth, sampleCount, sampleCount);
+    }
+
+    /**
+     * Will delete cached JSON files of rows of given tile of given width, see
+     * {@link #dropCachedTile(int, int, byte, int)}.
+     *
+     * @param idxLatitude  in quad tree
+     * @param idxLongitude in quad tree
+     * @param depth        in quad tree
+     * @param width        samples per row
+     * @param sampleCount  samples per column
+     * @return count of deleted files
+     */
+    public int dropCachedTile(int idxLatitude, int idxLongitude, byte depth, int width, int sampleCount) {
+        double degreesPerTile = 180.0 / (1 << depth);
+        double degreesPerSample = degreesPerTile / sampleCount;
+        double minLatitude = (idxLatitude + 1) * degreesPerTile - 90;
+        double minLongitude = idxLongitude * degreesPerTile - 180;
+        double maxLongitude = (idxLongitude + 1) * degreesPerTile - 180;
+
+        int deleted = 0;
+        for (int y = 0; y < sampleCount; y++) {
+            File file = getCacheFile(getRowKey(minLatitude - degreesPerSample * y, minLongitude, maxLongitude,
+                    width));
+            if (file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
 
     public void setApiKey(String apiKey) {
         this.apiKey = apiKey;
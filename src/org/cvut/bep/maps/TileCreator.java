@@ -451,7 +451,8 @@ public class TileCreator {
 
 		/**
 		 * Will construct output path for this rectangle and store image in this
-		 * to it.
+		 * to it. Images are grouped by zoom regardless of {@link org.cvut.bep.aglobex.gps.earth.TileLayout}
+		 * of the destination, indices of rectangles do not follow the quad tree of tiles.
 		 * @param destinationFolder that will contain stored file
 		 * @throws IOException in case of failed storing of the image
 		 */
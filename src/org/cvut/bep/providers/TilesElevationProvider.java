@@ -1,22 +1,154 @@
 package org.cvut.bep.providers;
 
 import org.cvut.bep.aglobex.gps.earth.ElevationMap;
+import org.cvut.bep.aglobex.gps.earth.TilePrefetcher;
+import org.cvut.bep.aglobex.gps.earth.TileStore;
+import org.cvut.bep.missionplanner.WaypointFile;
+import org.cvut.bep.missionplanner.WaypointItem;
+import aglobe.util.Logger;
 import com.google.maps.model.LatLng;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by janzaloudek on 20/05/16.
  */
 public class TilesElevationProvider extends ElevationProvider {
     public final static String PROVIDER_NAME = "TILES";
 
+    /**
+     * Count of threads loading tiles of a route ahead of its lookups
+     */
+    private final static int PREFETCH_THREADS = 2;
+
+    /**
+     * Minutes between evictions of tiles beyond the disk budget
+     */
+    private final static long TRIM_PERIOD_MINUTES = 10;
+
     private String resourcePath;
     private byte maximumDepth;
     private ElevationMap elevationMap;
+    private TilePrefetcher prefetcher;
 
     public TilesElevationProvider(String resourcePath, byte maximumDepth, int resolution) {
         this.resourcePath = resourcePath;
         this.maximumDepth = maximumDepth;
         this.elevationMap = new ElevationMap(resourcePath, maximumDepth, resolution);
+        this.prefetcher = new TilePrefetcher(elevationMap, PREFETCH_THREADS);
+    }
+
+    /**
+     * Will warm up the cache of tiles from given snapshot file (if it exists)
+     * in background and save the hot tiles into it when the application exits.
+     * Call it after {@link #useSharedCache(File, long)}, which clears the
+     * cache of tiles.
+     *
+     * @param snapshotFile to be loaded and saved
+     */
+    public void useSnapshot(final File snapshotFile) {
+        if (snapshotFile.exists()) {
+            elevationMap.loadSnapshotInBackground(snapshotFile);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    elevationMap.saveSnapshot(snapshotFile, false);
+                } catch (IOException e) {
+                    Logger.logWarning("Failed to save cache snapshot '" + snapshotFile + "'!", e);
+                }
+            }
+        }, "snapshot-saver"));
+    }
+
+    /**
+     * Will share decoded tiles with other processes of the host through given
+     * file mapped to memory, see {@link ElevationMap#setSharedTileCache(File, long)}.
+     *
+     * @param segmentFile of the shared cache, e.g. in <code>/dev/shm</code>
+     * @param capacity    in bytes of the cache if it is created
+     */
+    public void useSharedCache(File segmentFile, long capacity) {
+        try {
+            elevationMap.setSharedTileCache(segmentFile, capacity);
+        } catch (IOException e) {
+            Logger.logWarning("Failed to open shared tile cache '" + segmentFile + "', tiles are not shared!", e);
+        }
+    }
+
+    /**
+     * Will keep the tiles folder within given disk budget, least recently used
+     * tiles are evicted periodically in background and when the application
+     * exits, see {@link TileStore}.
+     *
+     * @param budget maximum bytes of the tiles folder
+     */
+    public void useDiskBudget(long budget) {
+        final TileStore store;
+        try {
+            store = new TileStore(new File(resourcePath), budget);
+        } catch (IOException e) {
+            Logger.logWarning("Failed to open tile store of '" + resourcePath + "', disk budget is ignored!", e);
+            return;
+        }
+        elevationMap.setTileStore(store);
+
+        final Runnable trim = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    elevationMap.trimTileStore();
+                } catch (IOException e) {
+                    Logger.logWarning("Failed to trim tiles folder '" + resourcePath + "'!", e);
+                }
+            }
+        };
+        ScheduledExecutorService trimmer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tile-store-trimmer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        trimmer.scheduleWithFixedDelay(trim, TRIM_PERIOD_MINUTES, TRIM_PERIOD_MINUTES, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(trim, "tile-store-trimmer"));
+    }
+
+    /**
+     * Will start loading tiles of route through given points in background.
+     *
+     * @param points of the route in order
+     */
+    public void prefetch(LatLng[] points) {
+        double[] latitudes = new double[points.length];
+        double[] longitudes = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latitudes[i] = points[i].lat;
+            longitudes[i] = points[i].lng;
+        }
+        prefetcher.prefetch(latitudes, longitudes);
+    }
+
+    /**
+     * Will start loading tiles of route of given waypoints in background.
+     *
+     * @param waypointFile with the route
+     */
+    public void prefetch(WaypointFile waypointFile) {
+        List<WaypointItem> items = waypointFile.getItems();
+        LatLng[] points = new LatLng[items.size()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new LatLng(items.get(i).getLatitude(), items.get(i).getLongitude());
+        }
+        prefetch(points);
     }
 
     @Override
@@ -26,13 +158,35 @@ public class TilesElevationProvider extends ElevationProvider {
 
     @Override
     public double[] getElevations(LatLng[] points) {
-        double[] result = new double[points.length];
-
-        for (int i = 0; i < result.length; i++) {
-            result[i] = elevationMap.getElevationM(points[i].lat, points[i].lng);
+        double[] latitudes = new double[points.length];
+        double[] longitudes = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latitudes[i] = points[i].lat;
+            longitudes[i] = points[i].lng;
         }
 
-        return result;
+        //tiles are loaded in route order while points are resolved in
+        //parallel grouped by tile
+        prefetcher.prefetch(latitudes, longitudes);
+        return elevationMap.getElevationsM(latitudes, longitudes);
+    }
+
+    /**
+     * Will retrieve elevations of given points from coarsest tiles meeting
+     * given resolution, e.g. for legs high above the terrain.
+     *
+     * @param points      to be looked up
+     * @param resolutionM required horizontal resolution in meters
+     * @return elevations in meters in order of the points
+     */
+    public double[] getElevations(LatLng[] points, double resolutionM) {
+        double[] latitudes = new double[points.length];
+        double[] longitudes = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latitudes[i] = points[i].lat;
+            longitudes[i] = points[i].lng;
+        }
+        return elevationMap.getElevationsAtResolutionM(latitudes, longitudes, resolutionM);
     }
 
     @Override